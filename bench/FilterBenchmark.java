@@ -0,0 +1,65 @@
+package bench;
+
+import shared.SwearFilter;
+
+/**
+ * Rough throughput check for SwearFilter on typical chat traffic.
+ * Run from the project root (so profanity-list.txt is found) with
+ * java -cp out/production/Hotel_Sockets bench.FilterBenchmark
+ *
+ * The result cache is switched off so every call does the real work. Clean lines and reactions
+ * should be answered by the prefix screen alone; lines with a banned word, and the rare clean
+ * line the screen lets through, go on to the full normalise-and-match path.
+ */
+public class FilterBenchmark {
+    private static final String[] CLEAN_LINES = {
+        "is the gym open today?",
+        "can someone cover my shift on friday",
+        "meeting at 3pm in room 204, bring the guest list",
+        "the airport shuttle leaves at noon",
+        "please restock the minibar in 407",
+        "room 204 needs a new key card",
+        "thanks, see you at breakfast"
+    };
+
+    private static final String[] DIRTY_LINES = {
+        "the f.u.c.k.i.n.g printer is jammed again",
+        "room 108 left the minibar in a sh1t state",
+        "that guest was a complete a s s h o l e"
+    };
+
+    private static final String[] REACTION_LINES = {
+        ":)", ":D", "+1", "<3", "!!!", "...", "\uD83D\uDC4D", "\uD83D\uDE02\uD83D\uDE02\uD83D\uDE02", "\uD83C\uDF89 \uD83C\uDF89", "?"
+    };
+
+    public static void main(String[] args) {
+        System.setProperty("chat.filterCacheChars", "0");
+        SwearFilter filter = new SwearFilter();
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+        // Warm up every path before measuring
+        run(filter, CLEAN_LINES, iterations / 10);
+        run(filter, DIRTY_LINES, iterations / 10);
+        run(filter, REACTION_LINES, iterations / 10);
+
+        System.out.printf("clean lines    (screened):  %6d ns/op%n", run(filter, CLEAN_LINES, iterations));
+        System.out.printf("dirty lines    (full path): %6d ns/op%n", run(filter, DIRTY_LINES, iterations));
+        System.out.printf("reaction lines (screened):  %6d ns/op%n", run(filter, REACTION_LINES, iterations));
+    }
+
+    private static long run(SwearFilter filter, String[] lines, int iterations) {
+        int masked = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            String line = lines[i % lines.length];
+            if (filter.filter(line) != line) {
+                masked++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (masked < 0) {
+            System.out.println(masked); // keep the loop from being optimised away
+        }
+        return elapsed / iterations;
+    }
+}
@@ -0,0 +1,62 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import server.StateStore;
+
+/**
+ * Warm restart cost: how long StateStore.open takes to read back 100k groups, 100k topics and
+ * their members and subscriptions, first from a snapshot alone and then from a snapshot plus a
+ * journal of changes made after it.
+ * Run with java -cp out/production/Hotel_Sockets bench.StateStoreBenchmark
+ */
+public class StateStoreBenchmark {
+    public static void main(String[] args) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        Path dir = Files.createTempDirectory("chat-state");
+        try {
+            StateStore store = StateStore.open(dir);
+            for (int i = 0; i < count; i++) {
+                store.groupCreated("group-" + i);
+                store.topicCreated("region" + (i % 100) + ".topic" + i);
+                store.memberJoined("group-" + i, "user" + i);
+                store.subscribed("user" + i, "region" + (i % 100) + ".topic" + i);
+                store.subscribed("user" + i, "region" + (i % 100) + ".#");
+            }
+            long start = System.nanoTime();
+            store.snapshot();
+            System.out.printf("snapshot written in %d ms (%d KB)%n", (System.nanoTime() - start) / 1_000_000,
+                    Files.size(dir.resolve("state.snap")) / 1024);
+            store.close();
+
+            System.out.printf("load from snapshot: %d ms%n", timeOpen(dir, count));
+
+            // Changes after the snapshot are only in the journal until the next one
+            store = StateStore.open(dir);
+            for (int i = 0; i < count / 10; i++) {
+                store.groupRemoved("group-" + i);
+                store.topicCreated("late.topic" + i);
+                store.unsubscribed("user" + i, "region" + (i % 100) + ".#");
+            }
+            store.flush(); // no close, as after a crash: the snapshot is not rewritten
+            System.out.printf("load from snapshot + journal: %d ms%n", timeOpen(dir, count));
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private static long timeOpen(Path dir, int expected) throws IOException {
+        long start = System.nanoTime();
+        StateStore store = StateStore.open(dir);
+        long elapsed = (System.nanoTime() - start) / 1_000_000;
+        if (store.groups().size() + store.topics().size() < expected) {
+            System.out.println("state was not restored");
+        }
+        return elapsed;
+    }
+}
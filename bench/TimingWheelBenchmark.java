@@ -0,0 +1,56 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import server.TimingWheel;
+
+/**
+ * Cost of the hierarchical timing wheel with millions of pending timeouts spread over 30 days of
+ * one second ticks, as scheduled messages are: schedule and cancel time per timeout, then the
+ * time to tick through all 30 days. Every timeout is checked to fire on exactly its due tick.
+ * Run with java -Xmx2g -cp out/production/Hotel_Sockets bench.TimingWheelBenchmark
+ */
+public class TimingWheelBenchmark {
+    private static final int TICKS = 30 * 24 * 60 * 60;
+
+    private static long tick = 0;
+    private static long fired = 0;
+    private static long late = 0;
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        Random random = new Random(42);
+        // Each item is the tick it is due on
+        TimingWheel<Long> wheel = new TimingWheel<>(1000, 256, expired -> {
+            for (long due : expired) {
+                fired++;
+                if (due != tick) {
+                    late++;
+                }
+            }
+        });
+
+        long start = System.nanoTime();
+        List<TimingWheel.Timeout<Long>> timeouts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long ticks = 1 + random.nextInt(TICKS);
+            timeouts.add(wheel.schedule(ticks, ticks * 1000));
+        }
+        System.out.printf("schedule: %d ns/op (%d pending)%n", (System.nanoTime() - start) / count, wheel.size());
+
+        int cancels = count / 10;
+        start = System.nanoTime();
+        for (int i = 0; i < cancels; i++) {
+            wheel.cancel(timeouts.get(i * 10));
+        }
+        System.out.printf("cancel:   %d ns/op (%d pending)%n", (System.nanoTime() - start) / cancels, wheel.size());
+
+        start = System.nanoTime();
+        for (tick = 1; tick <= TICKS; tick++) {
+            wheel.tick();
+        }
+        System.out.printf("ticked through %d ticks in %d ms: %d fired, %d on the wrong tick, %d left%n",
+                TICKS, (System.nanoTime() - start) / 1_000_000, fired, late, wheel.size());
+    }
+}
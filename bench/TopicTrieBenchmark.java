@@ -0,0 +1,138 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import server.ServerConfig;
+import server.TopicTrie;
+
+/**
+ * Topic matching cost with 100k hierarchical topics and 1M subscriptions.
+ * Run from the project root with
+ * java -Xmx2g -cp out/production/Hotel_Sockets bench.TopicTrieBenchmark
+ *
+ * Topics look like region.sport.teamN. Most subscriptions name a topic exactly, the rest use
+ * '*' or '#' patterns. The trie lookup is compared with a scan over every subscription,
+ * which is what a flat list of topics has to do. Last comes the worst case for '#': a pattern
+ * of nothing but '#' levels against a topic as deep as names may be.
+ */
+public class TopicTrieBenchmark {
+    private static final String[] REGIONS = {"uk", "us", "de", "fr", "es", "it", "jp", "br", "au", "ca"};
+    private static final String[] SPORTS = {"football", "tennis", "cricket", "rugby", "golf",
+        "hockey", "basketball", "baseball", "cycling", "boxing"};
+
+    public static void main(String[] args) {
+        int topicCount = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int subscriptionCount = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        Random random = new Random(42);
+
+        String[] topics = new String[topicCount];
+        int teamsPerSport = topicCount / (REGIONS.length * SPORTS.length) + 1;
+        for (int i = 0; i < topicCount; i++) {
+            topics[i] = REGIONS[i % REGIONS.length] + "." + SPORTS[(i / REGIONS.length) % SPORTS.length]
+                + ".team" + (i / (REGIONS.length * SPORTS.length)) % teamsPerSport;
+        }
+
+        TopicTrie<Integer> trie = new TopicTrie<>();
+        List<String> patterns = new ArrayList<>(subscriptionCount);
+        long start = System.nanoTime();
+        for (int i = 0; i < subscriptionCount; i++) {
+            String pattern = pattern(topics, random);
+            patterns.add(pattern);
+            trie.subscribe(pattern, i);
+        }
+        long buildMs = (System.nanoTime() - start) / 1_000_000;
+        System.out.printf("subscribed %d patterns in %d ms%n", trie.size(), buildMs);
+
+        int iterations = 200_000;
+        lookups(trie, topics, random, iterations / 10); // warm up
+        System.out.printf("trie lookup: %8d ns/op%n", lookups(trie, topics, random, iterations));
+        System.out.printf("linear scan: %8d ns/op%n", scans(patterns, topics, random, 20));
+        System.out.printf("many '#':    %8d ns/op%n", manyWildcards(10_000));
+    }
+
+    /**
+     * Ten '#' levels can split a topic in more ways than can be tried one by one; the trailing
+     * level that never matches makes the trie look at all of them
+     */
+    private static long manyWildcards(int iterations) {
+        TopicTrie<Integer> trie = new TopicTrie<>();
+        String hashes = String.join(TopicTrie.SEPARATOR, Collections.nCopies(10, TopicTrie.ANY_LEVELS));
+        trie.subscribe(hashes, 0);
+        trie.subscribe(hashes + ".nomatch", 1);
+        String topic = String.join(TopicTrie.SEPARATOR, Collections.nCopies(ServerConfig.TOPIC_MAX_LEVELS, "level"));
+        long[] matched = new long[1];
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            trie.match(topic, (subscriber, pattern) -> matched[0]++);
+        }
+        long elapsed = System.nanoTime() - start;
+        if (matched[0] != iterations) {
+            System.out.println("many '#' matched " + matched[0] + " times, expected " + iterations);
+        }
+        return elapsed / iterations;
+    }
+
+    /** 90% exact topics, 8% with a '*' level, 2% with a trailing '#' */
+    private static String pattern(String[] topics, Random random) {
+        String[] levels = topics[random.nextInt(topics.length)].split("\\.");
+        int kind = random.nextInt(100);
+        if (kind < 90) {
+            return String.join(".", levels);
+        }
+        if (kind < 98) {
+            levels[random.nextInt(levels.length)] = TopicTrie.ONE_LEVEL;
+            return String.join(".", levels);
+        }
+        return random.nextBoolean() ? levels[0] + ".#" : "#." + levels[2];
+    }
+
+    private static long lookups(TopicTrie<Integer> trie, String[] topics, Random random, int iterations) {
+        long[] matched = new long[1];
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            trie.match(topics[random.nextInt(topics.length)], (subscriber, pattern) -> matched[0]++);
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("  %.1f subscribers per topic%n", (double) matched[0] / iterations);
+        return elapsed / iterations;
+    }
+
+    private static long scans(List<String> patterns, String[] topics, Random random, int iterations) {
+        long matched = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            String[] levels = topics[random.nextInt(topics.length)].split("\\.");
+            for (String pattern : patterns) {
+                if (matches(pattern.split("\\."), 0, levels, 0)) {
+                    matched++;
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (matched < 0) {
+            System.out.println(matched); // keep the loop from being optimised away
+        }
+        return elapsed / iterations;
+    }
+
+    private static boolean matches(String[] pattern, int p, String[] levels, int t) {
+        if (p == pattern.length) {
+            return t == levels.length;
+        }
+        if (pattern[p].equals(TopicTrie.ANY_LEVELS)) {
+            for (int next = t; next <= levels.length; next++) {
+                if (matches(pattern, p + 1, levels, next)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (t == levels.length) {
+            return false;
+        }
+        return (pattern[p].equals(TopicTrie.ONE_LEVEL) || pattern[p].equals(levels[t]))
+            && matches(pattern, p + 1, levels, t + 1);
+    }
+}
@@ -0,0 +1,357 @@
+package client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import shared.Message;
+
+/**
+ * Non-interactive client for bots, gateways and tests. Every command is sent as a request with
+ * its own correlation id and returns a future of the server's reply, so a caller can pipeline
+ * any number of commands without waiting for each round trip. One connection carries any
+ * number of sessions, each a user of its own; chat and notices that are not replies go to the
+ * session's listener.
+ *
+ * Futures are completed and listeners called on the connection's reader thread, so callbacks
+ * should be quick or use the async variants of CompletableFuture.
+ */
+public class AsyncChatClient implements AutoCloseable {
+    /**
+     * The server's answer to one request
+     */
+    public record Response(Message.Status status, String text) {
+        public boolean isOk() {
+            return status == Message.Status.OK;
+        }
+    }
+
+    // Same framing as the interactive client: batched acks, long lines in parts, periodic stream resets
+    private static final int ACK_BATCH = 16;
+    private static final long ACK_INTERVAL_MS = 1000;
+    private static final int PART_CHARS = 8 * 1024;
+    private static final int STREAM_RESET_INTERVAL = 256;
+
+    private final Socket socket;
+    private final ObjectOutputStream outStream;
+    private final ObjectInputStream inStream;
+    private final ScheduledExecutorService ackTimer;
+    private final AtomicLong nextRequestId = new AtomicLong(1);
+    private final AtomicInteger nextSessionId = new AtomicInteger(0);
+    private final Map<Long, CompletableFuture<Response>> pending = new ConcurrentHashMap<>();
+    private final Map<Integer, Session> sessions = new ConcurrentHashMap<>();
+    private volatile boolean closed = false;
+    // Guarded by outStream
+    private long lastReceivedSeq = 0;
+    private long lastAckedSeq = 0;
+    private int framesSinceReset = 0;
+
+    private AsyncChatClient(Socket socket) throws IOException {
+        this.socket = socket;
+        this.outStream = new ObjectOutputStream(socket.getOutputStream());
+        this.outStream.flush(); // the server waits for our stream header before sending its own
+        this.inStream = new ObjectInputStream(socket.getInputStream());
+        Thread reader = new Thread(this::readLoop, "chat-reader-" + socket.getLocalPort());
+        reader.setDaemon(true);
+        reader.start();
+        ackTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "chat-ack-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        ackTimer.scheduleAtFixedRate(this::flushAck, ACK_INTERVAL_MS, ACK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Connects to the server's default tenant
+     */
+    public static AsyncChatClient connect(String host, int port) throws IOException {
+        Socket socket = new Socket(host, port);
+        try {
+            return new AsyncChatClient(socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Connects to one tenant (chat space) of a server hosting several, waiting for the server to accept
+     * @throws IOException if the connection fails or the server refuses the tenant
+     */
+    public static AsyncChatClient connect(String host, int port, String tenant) throws IOException {
+        AsyncChatClient client = connect(host, port);
+        try {
+            Response response = client.send(Message.hello(tenant)).get();
+            if (!response.isOk()) {
+                throw new IOException(response.status() + ": " + response.text());
+            }
+            return client;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            client.close();
+            throw new InterruptedIOException("interrupted while joining tenant " + tenant);
+        } catch (ExecutionException e) {
+            client.close();
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        } catch (IOException e) {
+            client.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Registers a user on a new session of this connection. The first session opened is the
+     * connection's own, later ones are multiplexed over it.
+     * @return A future of the session, failed with an IOException carrying the server's reason
+     *         if the name was refused
+     */
+    public CompletableFuture<Session> openSession(String username) {
+        Session session = new Session(nextSessionId.getAndIncrement(), username);
+        sessions.put(session.id, session);
+        return session.request("REGISTER " + username).thenApply(response -> {
+            if (!response.isOk()) {
+                sessions.remove(session.id);
+                throw new CompletionException(new IOException(response.status() + ": " + response.text()));
+            }
+            return session;
+        });
+    }
+
+    /**
+     * Closes the connection; requests still waiting for a reply fail
+     */
+    @Override
+    public void close() {
+        try {
+            socket.close(); // the reader fails out and fails whatever is pending
+        } catch (IOException ignored) {
+            // Already closed
+        }
+    }
+
+    /**
+     * One user on the connection
+     */
+    public final class Session {
+        private final int id;
+        private final String username;
+        private volatile Consumer<Message> listener = msg -> { };
+
+        private Session(int id, String username) {
+            this.id = id;
+            this.username = username;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        /**
+         * Sets where this session's chat, group and topic messages and server notices go
+         */
+        public void onMessage(Consumer<Message> listener) {
+            this.listener = listener;
+        }
+
+        /**
+         * Sends a command or a line of chat. Requests on one session are handled by the server
+         * in the order they were sent; the future completes once the server has answered.
+         * @return A future of the reply, failed if the connection drops first
+         */
+        public CompletableFuture<Response> request(String line) {
+            return AsyncChatClient.this.request(requestId -> sendLine(line, id, username, requestId));
+        }
+
+        /**
+         * Ends this session; for the connection's own session this ends the connection too
+         */
+        public CompletableFuture<Response> close() {
+            return request("/exit").whenComplete((response, error) -> sessions.remove(id));
+        }
+    }
+
+    private interface Sender {
+        void send(long requestId) throws IOException;
+    }
+
+    /**
+     * Registers a pending reply under a new request id, then sends the request
+     */
+    private CompletableFuture<Response> request(Sender sender) {
+        long requestId = nextRequestId.getAndIncrement();
+        CompletableFuture<Response> reply = new CompletableFuture<>();
+        pending.put(requestId, reply);
+        if (closed) {
+            // The reader may have failed the pending requests before this one was added
+            pending.remove(requestId);
+            reply.completeExceptionally(new IOException("connection closed"));
+            return reply;
+        }
+        try {
+            sender.send(requestId);
+        } catch (IOException e) {
+            pending.remove(requestId);
+            reply.completeExceptionally(e);
+        }
+        return reply;
+    }
+
+    /**
+     * Sends a control frame such as HELLO as a request of its own
+     */
+    private CompletableFuture<Response> send(Message frame) {
+        return request(requestId -> {
+            synchronized (outStream) {
+                write(frame.withRequestId(requestId).withAck(lastReceivedSeq));
+                lastAckedSeq = lastReceivedSeq;
+                outStream.flush();
+            }
+        });
+    }
+
+    /**
+     * Sends a line as a CHAT frame carrying the request id, followed by CHUNK frames if it is
+     * longer than PART_CHARS. The parts are written together so they stay in order.
+     */
+    private void sendLine(String line, int session, String username, long requestId) throws IOException {
+        synchronized (outStream) {
+            int start = 0;
+            do {
+                int end = Math.min(line.length(), start + PART_CHARS);
+                if (end < line.length()) {
+                    int space = line.lastIndexOf(' ', end - 1);
+                    if (space > start + PART_CHARS / 2) {
+                        end = space + 1;
+                    } else if (Character.isHighSurrogate(line.charAt(end - 1))) {
+                        end--; // don't split a character in two
+                    }
+                }
+                String part = line.substring(start, end);
+                Message frame = start == 0 ? new Message(part, username).withRequestId(requestId) : Message.chunk(part, username);
+                write(frame.withSession(session).withAck(lastReceivedSeq));
+                start = end;
+            } while (start < line.length());
+            lastAckedSeq = lastReceivedSeq;
+            outStream.flush();
+        }
+    }
+
+    /**
+     * Writes one frame; the caller holds the outStream lock and flushes
+     */
+    private void write(Message frame) throws IOException {
+        outStream.writeObject(frame);
+        // Parts of long lines are forgotten straight away, everything else every so often
+        if (++framesSinceReset >= STREAM_RESET_INTERVAL || frame.getMessageBody().length() >= PART_CHARS / 2) {
+            outStream.reset();
+            framesSinceReset = 0;
+        }
+    }
+
+    /**
+     * Reader thread: answers heartbeats, completes the future a reply is for and hands
+     * everything else to its session's listener
+     */
+    private void readLoop() {
+        IOException cause = new IOException("connection closed");
+        try {
+            while (true) {
+                Message msg = (Message) inStream.readObject();
+                if (msg.getType() == Message.Type.PING) {
+                    synchronized (outStream) {
+                        write(Message.pong());
+                        outStream.flush();
+                    }
+                    continue;
+                }
+                if (msg.getType() == Message.Type.RESUME && msg.getRequestId() == 0) {
+                    continue; // resume token: a dropped connection fails its requests rather than reconnecting
+                }
+                if (!acceptSequence(msg.getSequence())) {
+                    continue; // a retransmit we already have
+                }
+                CompletableFuture<Response> reply = msg.getRequestId() == 0 ? null : pending.remove(msg.getRequestId());
+                if (reply != null) {
+                    reply.complete(new Response(msg.getStatus(), msg.getMessageBody()));
+                    continue;
+                }
+                Session session = sessions.get(msg.getSession());
+                if (session != null) {
+                    session.listener.accept(msg);
+                }
+            }
+        } catch (IOException e) {
+            cause = e;
+        } catch (ClassNotFoundException e) {
+            cause = new IOException(e);
+        } finally {
+            closed = true;
+            ackTimer.shutdown();
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            for (Long requestId : pending.keySet()) {
+                CompletableFuture<Response> reply = pending.remove(requestId);
+                if (reply != null) {
+                    reply.completeExceptionally(cause);
+                }
+            }
+        }
+    }
+
+    /**
+     * Records a received sequence number and acks once a batch has built up
+     * @return false if the frame was already received and should be dropped
+     */
+    private boolean acceptSequence(long sequence) {
+        if (sequence == 0) {
+            return true; // unsequenced frame
+        }
+        synchronized (outStream) {
+            if (sequence <= lastReceivedSeq) {
+                return false;
+            }
+            lastReceivedSeq = sequence;
+        }
+        if (sequence - lastAckedSeq >= ACK_BATCH) {
+            flushAck();
+        }
+        return true;
+    }
+
+    /**
+     * Sends a standalone ack if anything arrived since the last one
+     */
+    private void flushAck() {
+        synchronized (outStream) {
+            if (lastReceivedSeq == lastAckedSeq) {
+                return;
+            }
+            try {
+                lastAckedSeq = lastReceivedSeq;
+                write(Message.ack(lastAckedSeq));
+                outStream.flush();
+            } catch (IOException e) {
+                // The reader thread fails the pending requests
+            }
+        }
+    }
+}
@@ -3,8 +3,23 @@ package client;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import shared.Message;
 import shared.SwearFilter;
@@ -17,17 +32,47 @@ public class ChatClient {
     private final AtomicBoolean registrationComplete = new AtomicBoolean(false);
     private final Object registrationLock = new Object(); // Add lock object for synchronization
     private String username = ""; // Store the username as a class field for access in all methods
+    // Correlation id of our latest REGISTER, so its reply is told apart from other server messages
+    private volatile long registerRequest = 0;
+    // Cumulative acks are sent every ACK_BATCH frames, or after ACK_INTERVAL_MS when traffic is light
+    private static final int ACK_BATCH = 16;
+    private static final long ACK_INTERVAL_MS = 1000;
+    private long lastReceivedSeq = 0; // highest sequence number received from the server
+    private long lastAckedSeq = 0;    // highest sequence number we have acknowledged
+    // Lines longer than PART_CHARS go as several frames so each stays well under the server's frame limit
+    private static final int PART_CHARS = 8 * 1024;
+    // The server's stream keeps every frame we send until we reset ours
+    private static final int STREAM_RESET_INTERVAL = 256;
+    private int framesSinceReset = 0;
+    // File attachments go over a side channel on the server's file port
+    private final String host = System.getProperty("chat.host", "localhost");
+    private final int port = Integer.getInteger("chat.port", 50000);
+    private final int filePort = Integer.getInteger("chat.filePort", port + 1);
+    // Hotel property to join on a server hosting several; the server's default one if unset
+    private final String tenant = System.getProperty("chat.tenant");
+    private final Map<String, Path> pendingUploads = new ConcurrentHashMap<>();
+    private int nextUploadId = 1;
 
     public void startClient() {
         try {
-            socket = new Socket("localhost", 50000);
+            socket = new Socket(host, port);
             outStream = new ObjectOutputStream(socket.getOutputStream());
             inStream = new ObjectInputStream(socket.getInputStream());
+            if (tenant != null) {
+                sendToServer(Message.hello(tenant));
+            }
 
             Thread listenerThread = new Thread(this::listenToServer);
             listenerThread.setDaemon(true);
             listenerThread.start();
 
+            ScheduledExecutorService ackTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "ack-timer");
+                t.setDaemon(true);
+                return t;
+            });
+            ackTimer.scheduleAtFixedRate(this::flushAck, ACK_INTERVAL_MS, ACK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
             try ( // Read the username and send a registration command.
                     Scanner scanner = new Scanner(System.in)) {
                 // Loop until successful registration
@@ -48,9 +93,9 @@ public class ChatClient {
                     }
                     
                     // We're sending the entire username as is, even if it contains spaces
-                    Message registerMsg = new Message("REGISTER " + username, username);
-                    outStream.writeObject(registerMsg);
-                    outStream.flush();
+                    registerRequest++;
+                    Message registerMsg = new Message("REGISTER " + username, username).withRequestId(registerRequest);
+                    sendToServer(registerMsg);
                     
                     // Wait for the server's response using proper synchronization
                     synchronized (registrationLock) {
@@ -91,7 +136,9 @@ public class ChatClient {
                                                                Basic Commands:
                                                                1. /register <username> - Register with a username
                                                                2. /name - Show your current username
-                                                               3. /exit - Exit the chat
+                                                               3. /stats - Show server statistics
+                                                               4. /exit - Exit the chat
+                                                               5. /operator <key> - Also show flooded payloads in /stats
                                                                """;
                         
                         String groupHelp = """
@@ -102,22 +149,24 @@ public class ChatClient {
                                                                  3. leave - Leave a group
                                                                  4. remove - Remove a group
                                                                  5. list - Show all available groups
+                                                                 6. realtime <groupName> <on|off> - Get every message of a busy group instead of digests
                                                                """;
                         
                         String topicHelp = """
                                                                Topic Commands:
                                                                1. /topic <flag> <topicName>
                                                                  1. create - Create a new topic
-                                                                 2. subscribe - Subscribe to a topic
-                                                                 3. unsubscribe - Unsubscribe from a topic
+                                                                 2. subscribe - Subscribe to a topic or pattern (sports.*, sports.#)
+                                                                 3. unsubscribe - Unsubscribe from a topic or pattern
                                                                  4. list - List all available topics
                                                                """;
                         
                         String userHelp = """
                                                               User Commands:
                                                               1. /user <flag>
-                                                                1. list - Show a list of all online users
-                                                                2. count - Show the number of users online
+                                                                1. list [after <username>] - Show a page of online users
+                                                                2. since <version> - Show who joined or left since a list version
+                                                                3. count - Show the number of users online
                                                               """;
                         
                         String messageHelp = """
@@ -125,6 +174,12 @@ public class ChatClient {
                                                                  1. /send <target> <message> - Send a message to a user or group (old format)
                                                                  2. /send user <username> <message> - Send a direct message to a specific user
                                                                  3. /send group <groupname> <message> - Send a message to a specific group
+                                                                 4. /send file <target> <path> - Send a file to a user or group (saved under downloads/)
+                                                                 5. /schedule in <duration> <group <name>|user <name>|all> <message> - Send a message later (e.g. in 30m, in 1h30m)
+                                                                 6. /schedule at <time> <group <name>|user <name>|all> <message> - Send a message at 07:00 or 2026-12-24T18:00
+                                                                 7. /schedule list - Show your scheduled messages
+                                                                 8. /schedule cancel <id> - Cancel a scheduled message
+                                                                 9. /schedule claim <key> - Manage the scheduled messages made under a key after reconnecting
                                                                  """;
                         
                         if (helpFlag.isEmpty()) {
@@ -174,10 +229,10 @@ public class ChatClient {
                     if (userInputLower.startsWith("/")) {
                         // List of valid commands
                         String[] validCommands = {
-                            "/help", "/exit", "/name", "/topics",
+                            "/help", "/exit", "/name", "/topics", "/stats",
                             "/register ", "/create ", "/join ", "/leave ",
                             "/remove ", "/topic ", "/subscribe ", "/unsubscribe ", "/send ",
-                            "/user ", "/group "
+                            "/user ", "/group ", "/schedule ", "/operator "
                         };
                         
                         boolean validCommand = false;
@@ -222,6 +277,12 @@ public class ChatClient {
                         }
                     }
                     
+                    // Files are announced over chat and sent over the side channel once the server says go
+                    if (userInputLower.startsWith("/send file ")) {
+                        requestUpload(userInput.substring("/send file ".length()).trim());
+                        continue;
+                    }
+                    
                     // Intercept /send command to apply filtering based on new format
                     String filteredUserInput;
                     if (userInputLower.startsWith("/send")) {
@@ -274,9 +335,7 @@ public class ChatClient {
                     }
                     
                     // Send the filtered message to the server
-                    Message msg = new Message(filteredUserInput, username);
-                    outStream.writeObject(msg);
-                    outStream.flush();
+                    sendLine(filteredUserInput);
                     
                     if (userInput.equalsIgnoreCase("exit") || userInput.equalsIgnoreCase("/exit")) {
                         break;
@@ -297,8 +356,34 @@ public class ChatClient {
         try {
             while (true) {
                 Message msg = (Message) inStream.readObject();
+                if (msg.getType() == Message.Type.PING) {
+                    sendToServer(Message.pong()); // heartbeat, answer straight away
+                    continue;
+                }
+                if (msg.getType() == Message.Type.RESUME && msg.getRequestId() == 0) {
+                    continue; // resume token: this client starts a new session rather than reconnecting
+                }
+                if (!acceptSequence(msg.getSequence())) {
+                    continue; // Duplicate of a frame we already have (retransmit after reconnect)
+                }
+                if (msg.getType() == Message.Type.FILE) {
+                    handleFileFrame(msg);
+                    continue;
+                }
                 
-                // Check if this is a registration response
+                // The answer to our REGISTER: its status says whether we are in
+                if (msg.getRequestId() != 0 && msg.getRequestId() == registerRequest) {
+                    if (msg.getStatus() == Message.Status.OK) {
+                        username = msg.getMessageBody().substring("Successfully registered as: ".length());
+                        registrationComplete.set(true);
+                    }
+                    System.out.println(msg.getMessageBody());
+                    synchronized (registrationLock) {
+                        registrationLock.notifyAll(); // Notify waiting thread
+                    }
+                    continue;
+                }
+                // Check if this is a /register response
                 if (msg.getUser().equals("Server")) {
                     // Successful registration check
                     if (msg.getMessageBody().contains("Successfully registered as:")) {
@@ -336,11 +421,14 @@ public class ChatClient {
                     continue;
                 }
                 
+                // Show which of our subscribed topics the message matched, e.g. [#java #jvm]
+                String topics = msg.getTopics().isEmpty() ? "" : "[#" + String.join(" #", msg.getTopics()) + "] ";
+                
                 //Display the sender and message.
                 if (msg.getUser() == null || msg.getUser().isEmpty()) {
-                    System.out.println(msg.getMessageBody());
+                    System.out.println(topics + msg.getMessageBody());
                 } else {
-                    System.out.println(msg.getUser() + ": " + msg.getMessageBody());
+                    System.out.println(topics + msg.getUser() + ": " + msg.getMessageBody());
                 }
             }
         } catch (IOException | ClassNotFoundException e) {
@@ -348,6 +436,192 @@ public class ChatClient {
         }
     }
 
+    /**
+     * Tells the server about a file to send: /send file <target> <uploadId> <size> <name>.
+     * The server answers with an upload token if the target exists and the file isn't too big.
+     */
+    private void requestUpload(String args) throws IOException {
+        String[] parts = args.split("\\s+", 2);
+        if (parts.length < 2) {
+            System.out.println("Please specify a target and a file: /send file <user|group> <path>");
+            return;
+        }
+        Path path;
+        try {
+            path = Paths.get(parts[1]);
+        } catch (InvalidPathException e) {
+            System.out.println("Cannot read file: " + parts[1]);
+            return;
+        }
+        if (!Files.isRegularFile(path) || !Files.isReadable(path)) {
+            System.out.println("Cannot read file: " + parts[1]);
+            return;
+        }
+        String uploadId = Integer.toString(nextUploadId++);
+        pendingUploads.put(uploadId, path);
+        sendToServer(new Message("/send file " + parts[0] + " " + uploadId + " " + Files.size(path) + " "
+                + path.getFileName(), username));
+    }
+
+    /**
+     * UPLOAD <uploadId> <token>: the server is ready for one of our files.
+     * OFFER <token> <size> <name>: someone sent us a file, fetch it into downloads/.
+     * Transfers run on their own threads so chat carries on meanwhile.
+     */
+    private void handleFileFrame(Message msg) {
+        String[] parts = msg.getMessageBody().split(" ", 4);
+        if (parts[0].equals("UPLOAD") && parts.length == 3) {
+            Path path = pendingUploads.remove(parts[1]);
+            if (path != null) {
+                startTransfer(() -> upload(path, parts[2]));
+            }
+        } else if (parts[0].equals("OFFER") && parts.length == 4) {
+            long size = Long.parseLong(parts[2]);
+            System.out.println(msg.getUser() + " is sending you " + parts[3] + " (" + size + " bytes)");
+            startTransfer(() -> download(parts[1], size, parts[3], msg.getUser()));
+        }
+    }
+
+    private interface Transfer {
+        void run() throws IOException;
+    }
+
+    private void startTransfer(Transfer transfer) {
+        Thread thread = new Thread(() -> {
+            try {
+                transfer.run();
+            } catch (IOException e) {
+                System.err.println("File transfer failed: " + e.getMessage());
+            }
+        }, "file-transfer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void upload(Path path, String token) throws IOException {
+        try (SocketChannel channel = openFileChannel("UPLOAD " + token);
+             FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = file.size();
+            long position = 0;
+            while (position < size) {
+                position += file.transferTo(position, size - position, channel);
+            }
+        }
+    }
+
+    private void download(String token, long size, String name, String sender) throws IOException {
+        Path dir = Paths.get("downloads", username);
+        Files.createDirectories(dir);
+        Path target = dir.resolve(name);
+        for (int copy = 1; Files.exists(target); copy++) {
+            target = dir.resolve(copy + "-" + name);
+        }
+        boolean complete = false;
+        try (SocketChannel channel = openFileChannel("DOWNLOAD " + token);
+             FileChannel file = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long position = 0;
+            while (position < size) {
+                long read = file.transferFrom(channel, position, size - position);
+                if (read <= 0) {
+                    break;
+                }
+                position += read;
+            }
+            complete = position == size;
+        } finally {
+            if (!complete) {
+                Files.deleteIfExists(target);
+            }
+        }
+        System.out.println(complete ? "Saved " + name + " from " + sender + " to " + target
+                : "Download of " + name + " from " + sender + " was cut short");
+    }
+
+    private SocketChannel openFileChannel(String header) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, filePort));
+        ByteBuffer buffer = ByteBuffer.wrap((header + "\n").getBytes(StandardCharsets.US_ASCII));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        return channel;
+    }
+
+    /**
+     * Sends a line of chat or a command. A line longer than PART_CHARS goes as a CHAT frame with
+     * the start of it followed by CHUNK frames, split on spaces where possible.
+     */
+    private void sendLine(String line) throws IOException {
+        int start = 0;
+        do {
+            int end = Math.min(line.length(), start + PART_CHARS);
+            if (end < line.length()) {
+                int space = line.lastIndexOf(' ', end - 1);
+                if (space > start + PART_CHARS / 2) {
+                    end = space + 1;
+                } else if (Character.isHighSurrogate(line.charAt(end - 1))) {
+                    end--; // don't split a character in two
+                }
+            }
+            String part = line.substring(start, end);
+            sendToServer(start == 0 ? new Message(part, username) : Message.chunk(part, username));
+            start = end;
+        } while (start < line.length());
+    }
+
+    /**
+     * Writes a frame to the server with our latest cumulative ack piggybacked on it
+     */
+    private void sendToServer(Message msg) throws IOException {
+        synchronized (outStream) {
+            lastAckedSeq = lastReceivedSeq;
+            outStream.writeObject(msg.withAck(lastAckedSeq));
+            // Parts of long lines are forgotten straight away, everything else every so often
+            if (++framesSinceReset >= STREAM_RESET_INTERVAL || msg.getMessageBody().length() >= PART_CHARS / 2) {
+                outStream.reset();
+                framesSinceReset = 0;
+            }
+            outStream.flush();
+        }
+    }
+
+    /**
+     * Records a received sequence number and acks once a batch has built up
+     * @return false if the frame was already received and should be dropped
+     */
+    private boolean acceptSequence(long sequence) {
+        if (sequence == 0) {
+            return true; // unsequenced frame
+        }
+        synchronized (outStream) {
+            if (sequence <= lastReceivedSeq) {
+                return false;
+            }
+            lastReceivedSeq = sequence;
+        }
+        if (sequence - lastAckedSeq >= ACK_BATCH) {
+            flushAck();
+        }
+        return true;
+    }
+
+    /**
+     * Sends a standalone ack if anything arrived since the last one
+     */
+    private void flushAck() {
+        synchronized (outStream) {
+            if (lastReceivedSeq == lastAckedSeq) {
+                return;
+            }
+            try {
+                lastAckedSeq = lastReceivedSeq;
+                outStream.writeObject(Message.ack(lastAckedSeq));
+                outStream.flush();
+            } catch (IOException e) {
+                // The listener thread reports the disconnect
+            }
+        }
+    }
+
     public static void main(String[] args) {
         ChatClient client = new ChatClient();
         client.startClient();
@@ -0,0 +1,89 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+import shared.Message;
+
+/**
+ * Decides on the accept thread whether a new connection is taken on. Past the connection limit,
+ * or when the heap is nearly full, the connection is sent a ready-made "server busy" frame and
+ * closed straight away, so an overloaded server sheds load instead of queueing handshakes.
+ */
+public class AdmissionControl {
+    private static final byte[] BUSY_FRAME = serialize(
+            new Message("Server busy, please try again later.", "Server"));
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final int maxConnections;
+    private final double minFreeHeap;
+
+    public AdmissionControl(int maxConnections, double minFreeHeapPercent) {
+        this.maxConnections = maxConnections;
+        this.minFreeHeap = minFreeHeapPercent / 100.0;
+    }
+
+    /**
+     * Counts the connection in if there is room; every successful call must be paired with release()
+     */
+    public boolean tryAdmit() {
+        if (freeHeapFraction() < minFreeHeap) {
+            return false;
+        }
+        while (true) {
+            int current = connections.get();
+            if (current >= maxConnections) {
+                return false;
+            }
+            if (connections.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release() {
+        connections.decrementAndGet();
+    }
+
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    /**
+     * Sends the busy frame and closes the socket. The frame is a few hundred bytes going into an
+     * empty socket buffer, so this does not block the accept thread.
+     */
+    public void reject(Socket socket) {
+        ServerStats.recordConnectionShed();
+        try (socket) {
+            OutputStream out = socket.getOutputStream();
+            out.write(BUSY_FRAME);
+            out.flush();
+        } catch (IOException e) {
+            // The client gets a closed connection instead
+        }
+    }
+
+    private static double freeHeapFraction() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        return 1.0 - (double) used / runtime.maxMemory();
+    }
+
+    /**
+     * Pre-serializes a frame, stream header included, exactly as a fresh ObjectOutputStream would send it
+     */
+    private static byte[] serialize(Message message) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(message);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -1,215 +1,279 @@
 package server;
 
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 import shared.Message;
-import shared.SwearFilter;
 
+/**
+ * Registry of chat groups. Each group is a GroupActor; the methods here look the group up and
+ * post a message to it, and the actor replies to the client itself once it has been processed.
+ */
 public class ChatGroup {
-    private final Map<String, Set<ServerHandler>> groups;
-    private final SwearFilter swearFilter = new SwearFilter();
-
-    public ChatGroup() {
-        groups = new HashMap<>();
-    }
-
-    public synchronized String createGroup(String groupName) {
-        if (groupName == null || groupName.trim().isEmpty()) {
-            return "Group name cannot be empty.";
+    private final Map<String, GroupActor> groups = new ConcurrentHashMap<>();
+    private final AtomicInteger groupCount = new AtomicInteger(); // slots taken, including creates not yet in groups
+    private final ExecutorService scheduler; // drains every group's mailbox
+    private final ScheduledExecutorService timer; // digest flushes
+    private final FanOut fanOut;
+    private final StateStore store;
+    private final int maxGroups;
+
+    /**
+     * @param scheduler Threads that drain the group mailboxes, may be shared with other registries
+     * @param maxGroups Groups that may exist at once; creating more is refused
+     */
+    public ChatGroup(FanOut fanOut, StateStore store, ExecutorService scheduler, ScheduledExecutorService timer, int maxGroups) {
+        this.fanOut = fanOut;
+        this.store = store;
+        this.scheduler = scheduler;
+        this.timer = timer;
+        this.maxGroups = maxGroups;
+        // Groups that existed before a restart come back empty; members rejoin when they register
+        for (String groupName : store.groups()) {
+            groups.put(groupName, new GroupActor(groupName, this, scheduler, timer, fanOut));
         }
-
-        groupName = groupName.trim();
-        if (groups.containsKey(groupName)) {
-            return "Group '" + groupName + "' already exists.";
-        }
-
-        groups.put(groupName, new HashSet<>());
-        return "Group '" + groupName + "' created successfully.";
+        groupCount.set(groups.size());
     }
 
-    public synchronized String joinGroup(String groupName, ServerHandler client) {
+    public void createGroup(String groupName, ServerHandler client) {
         if (groupName == null || groupName.trim().isEmpty()) {
-            return "Group name cannot be empty.";
+            reply(client, Message.Status.INVALID, "Group name cannot be empty.");
+            return;
         }
 
         groupName = groupName.trim();
-        Set<ServerHandler> groupMembers = groups.get(groupName);
-        if (groupMembers == null) {
-            return "Group '" + groupName + "' does not exist.";
-        }
-
-        if (groupMembers.contains(client)) {
-            return "You are already in group '" + groupName + "'.";
+        // Take a slot before creating, so concurrent creates cannot all pass the check and overshoot
+        if (groupCount.incrementAndGet() > maxGroups) {
+            groupCount.decrementAndGet();
+            reply(client, Message.Status.UNAVAILABLE, "Group limit reached (" + maxGroups + "), " + groupName + " was not created.");
+            return;
         }
-
-        String oldGroup = client.getCurrentGroup();
-        if (!oldGroup.isEmpty()) {
-            leaveGroup(oldGroup, client);
+        GroupActor group = new GroupActor(groupName, this, scheduler, timer, fanOut);
+        if (groups.putIfAbsent(groupName, group) != null) {
+            groupCount.decrementAndGet();
+            reply(client, Message.Status.CONFLICT, "Group '" + groupName + "' already exists.");
+            return;
         }
-
-        groupMembers.add(client);
-        client.setCurrentGroup(groupName);
-
-        // Announce to group - DON'T filter system announcements
-        String announcement = "User " + client.getUsername() + " joined group '" + groupName + "'.";
-        sendGroupAnnouncement(groupName, new Message(announcement, "Server"), client);
-
-        return "You joined group '" + groupName + "'.";
+        store.groupCreated(groupName);
+        reply(client, Message.Status.OK, "Group '" + groupName + "' created successfully.");
     }
 
-    public synchronized String leaveGroup(String groupName, ServerHandler client) {
-        if (groupName == null || groupName.trim().isEmpty()) {
-            return "Group name cannot be empty.";
+    public void joinGroup(String groupName, ServerHandler client) {
+        GroupActor group = lookup(groupName, client);
+        if (group != null) {
+            group.join(client, false);
         }
+    }
 
-        groupName = groupName.trim();
-        Set<ServerHandler> groupMembers = groups.get(groupName);
-        if (groupMembers == null) {
-            return "Group '" + groupName + "' does not exist.";
+    public void leaveGroup(String groupName, ServerHandler client) {
+        GroupActor group = lookup(groupName, client);
+        if (group != null) {
+            group.leave(client, true);
         }
+    }
 
-        if (!groupMembers.contains(client)) {
-            return "You are not in group '" + groupName + "'.";
+    /**
+     * Leaves a group without replying, used when a client moves to another group
+     */
+    void leaveQuietly(String groupName, ServerHandler client) {
+        GroupActor group = groups.get(groupName);
+        if (group != null) {
+            group.leave(client, false);
         }
+    }
 
-        groupMembers.remove(client);
-        if (client.getCurrentGroup().equals(groupName)) {
-            client.setCurrentGroup("");
+    public void removeGroup(String groupName, ServerHandler client) {
+        GroupActor group = lookup(groupName, client);
+        if (group != null) {
+            group.remove(client);
         }
+    }
 
-        // Announce to group - DON'T filter system announcements
-        String announcement = "User " + client.getUsername() + " left group '" + groupName + "'.";
-        sendGroupAnnouncement(groupName, new Message(announcement, "Server"), null);
-
-        // Remove empty groups
-        if (groupMembers.isEmpty()) {
-            groups.remove(groupName);
-            return "You left group '" + groupName + "'. Group was removed as it is now empty.";
+    /**
+     * Called by a group's actor once it has been removed or emptied
+     */
+    void unregister(GroupActor group) {
+        if (groups.remove(group.getName(), group)) {
+            groupCount.decrementAndGet();
+            store.groupRemoved(group.getName());
         }
+    }
 
-        return "You left group '" + groupName + "'.";
+    /**
+     * Called by a group's actor when a client joins or leaves it, to keep the stored membership
+     */
+    void memberJoined(GroupActor group, ServerHandler client) {
+        store.memberJoined(group.getName(), client.getUsername());
     }
 
-    public synchronized String removeGroup(String groupName, ServerHandler client) {
-        if (groupName == null || groupName.trim().isEmpty()) {
-            return "Group name cannot be empty.";
-        }
+    void memberLeft(GroupActor group, ServerHandler client) {
+        store.memberLeft(group.getName(), client.getUsername());
+    }
 
-        groupName = groupName.trim();
-        if (!groups.containsKey(groupName)) {
-            return "Group '" + groupName + "' does not exist.";
+    /**
+     * Puts a newly registered client back in the group it was in when it last went away
+     */
+    public void restoreMembership(ServerHandler client) {
+        String groupName = store.groupOf(client.getUsername());
+        GroupActor group = groupName == null ? null : groups.get(groupName);
+        if (group != null) {
+            group.join(client, true);
         }
+    }
 
-        Set<ServerHandler> groupMembers = groups.get(groupName);
-        // Announce to all group members before removing
-        String announcement = "Group '" + groupName + "' has been removed by " + client.getUsername() + ".";
-        sendGroupAnnouncement(groupName, new Message(announcement, "Server"), null);
+    /**
+     * Takes a client whose session ended out of its group, keeping the stored membership
+     */
+    public void clientGone(ServerHandler client) {
+        departQuietly(client.getCurrentGroup(), client);
+    }
 
-        // Reset currentGroup for all members
-        for (ServerHandler member : groupMembers) {
-            if (member.getCurrentGroup().equals(groupName)) {
-                member.setCurrentGroup("");
-            }
+    /**
+     * Takes a closed session out of a group without touching its stored membership
+     */
+    void departQuietly(String groupName, ServerHandler client) {
+        GroupActor group = groupName.isEmpty() ? null : groups.get(groupName);
+        if (group != null) {
+            group.depart(client);
         }
+    }
 
-        groups.remove(groupName);
-        return "Group '" + groupName + "' was removed.";
+    public void clientRenamed(String oldName, String newName) {
+        if (oldName != null) {
+            store.memberRenamed(oldName, newName);
+        }
     }
 
-    public synchronized String listGroups() {
+    public String listGroups() {
         if (groups.isEmpty()) {
             return "No groups available.";
         }
 
         StringBuilder sb = new StringBuilder("Available groups:\n");
-        for (Map.Entry<String, Set<ServerHandler>> entry : groups.entrySet()) {
-            String groupName = entry.getKey();
-            int memberCount = entry.getValue().size();
-            sb.append("- ").append(groupName).append(" (").append(memberCount).append(" members)\n");
+        for (GroupActor group : new ArrayList<>(groups.values())) {
+            sb.append("- ").append(group.getName()).append(" (").append(group.getMemberCount()).append(" members")
+                    .append(group.isDigestMode() ? ", digest mode" : "").append(")\n");
         }
 
         return sb.toString().trim();
     }
 
-    public synchronized boolean groupExists(String groupName) {
+    public boolean groupExists(String groupName) {
         return groups.containsKey(groupName);
     }
 
-    public synchronized void sendToGroup(String groupName, Message msg, ServerHandler sender) {
-        Set<ServerHandler> groupMembers = groups.get(groupName);
-        if (groupMembers == null) {
+    public void sendToGroup(String groupName, Message msg, ServerHandler sender) {
+        sendToGroup(groupName, msg, sender, TopicMatches.NONE);
+    }
+
+    /**
+     * Sends a message to a group; topic subscribers get it once, tagged with their topics
+     */
+    public void sendToGroup(String groupName, Message msg, ServerHandler sender, TopicMatches matches) {
+        GroupActor group = groups.get(groupName);
+        if (group == null) {
             if (sender != null) {
-                sender.sendMessageToClient(new Message("Group '" + groupName + "' does not exist.", "Server"));
+                tell(sender, "Group '" + groupName + "' does not exist.");
             }
+            // Topic subscribers still get it
+            matches.deliverRemaining(msg, sender, subscriber -> false);
             return;
         }
-
-        // Special handling for server messages - never filter them
-        boolean isServerMessage = "Server".equals(msg.getUser());
-
-        String prefix = "GROUP [" + groupName + "] | ";
-        for (ServerHandler member : groupMembers) {
-            if (member != sender) { // Don't send back to the sender
-                if (isServerMessage) {
-                    // Don't filter server messages
-                    member.sendMessageToClient(new Message(prefix + msg.getUser() + ": " + msg.getMessageBody(), ""));
-                } else {
-                    // Regular message
-                    String filteredMessageBody = swearFilter.filter(msg.getMessageBody());
-                    member.sendMessageToClient(new Message(prefix + msg.getUser() + ": " + filteredMessageBody, ""));
-                }
-            }
-        }
+        group.send(msg, sender, matches);
     }
 
-    private void sendGroupAnnouncement(String groupName, Message msg, ServerHandler exclude) {
-        Set<ServerHandler> groupMembers = groups.get(groupName);
-        if (groupMembers == null) {
+    /**
+     * Offers a spooled file to every member of a group except the sender
+     */
+    public void offerFile(String groupName, FileTransfers.SpooledFile file, ServerHandler sender, FileTransfers transfers) {
+        GroupActor group = groups.get(groupName);
+        if (group == null) {
+            tell(sender, "File " + file.getName() + " not delivered: group '" + groupName + "' no longer exists.");
+            transfers.offered(file);
             return;
         }
-
-        String prefix = "GROUP [" + groupName + "] | ";
-        for (ServerHandler member : groupMembers) {
-            if (member != exclude) {
-                member.sendMessageToClient(new Message(prefix + msg.getUser() + ": " + msg.getMessageBody(), ""));
-            }
-        }
+        group.offerFile(file, sender, transfers);
     }
 
-    public synchronized String processGroupCommand(String subCommand, String args, ServerHandler client) {
+    public void processGroupCommand(String subCommand, String args, ServerHandler client) {
         switch (subCommand) {
             case "create" -> {
                 if (args == null || args.isEmpty()) {
-                    return "Please specify a group name: /group create <groupName>";
+                    reply(client, Message.Status.INVALID, "Please specify a group name: /group create <groupName>");
+                    return;
                 }
-                return createGroup(args);
+                createGroup(args, client);
             }
             case "join" -> {
                 if (args == null || args.isEmpty()) {
-                    return "Please specify a group name: /group join <groupName>";
+                    reply(client, Message.Status.INVALID, "Please specify a group name: /group join <groupName>");
+                    return;
                 }
-                return joinGroup(args, client);
+                joinGroup(args, client);
             }
             case "leave" -> {
                 if (args == null || args.isEmpty()) {
-                    return "Please specify a group name: /group leave <groupName>";
+                    reply(client, Message.Status.INVALID, "Please specify a group name: /group leave <groupName>");
+                    return;
                 }
-                return leaveGroup(args, client);
+                leaveGroup(args, client);
             }
             case "remove" -> {
                 if (args == null || args.isEmpty()) {
-                    return "Please specify a group name: /group remove <groupName>";
+                    reply(client, Message.Status.INVALID, "Please specify a group name: /group remove <groupName>");
+                    return;
                 }
-                return removeGroup(args, client);
-            }
-            case "list" -> {
-                return listGroups();
+                removeGroup(args, client);
             }
-            default -> {
-                return "Invalid group command. Available options: create, join, leave, remove, list";
+            case "realtime" -> {
+                // /group realtime <groupName> on|off
+                int split = args == null ? -1 : args.lastIndexOf(' ');
+                String toggle = split < 0 ? "" : args.substring(split + 1).toLowerCase();
+                if (!toggle.equals("on") && !toggle.equals("off")) {
+                    reply(client, Message.Status.INVALID, "Please specify a group and on/off: /group realtime <groupName> <on|off>");
+                    return;
+                }
+                GroupActor group = lookup(args.substring(0, split), client);
+                if (group != null) {
+                    group.setRealtime(client, toggle.equals("on"));
+                }
             }
+            case "list" -> reply(client, Message.Status.OK, listGroups());
+            default -> reply(client, Message.Status.INVALID, "Invalid group command. Available options: create, join, leave, remove, list, realtime");
+        }
+    }
+
+    /**
+     * Finds a group, telling the client if the name is empty or unknown
+     */
+    private GroupActor lookup(String groupName, ServerHandler client) {
+        if (groupName == null || groupName.trim().isEmpty()) {
+            reply(client, Message.Status.INVALID, "Group name cannot be empty.");
+            return null;
+        }
+        groupName = groupName.trim();
+        GroupActor group = groups.get(groupName);
+        if (group == null) {
+            reply(client, Message.Status.NOT_FOUND, "Group '" + groupName + "' does not exist.");
         }
+        return group;
+    }
+
+    /**
+     * Answers the command the client is running on its pipeline lane
+     */
+    private static void reply(ServerHandler client, Message.Status status, String text) {
+        client.reply(status, text);
+    }
+
+    /**
+     * Tells the client something that is not the answer to a command, such as a chat message
+     * whose group has gone
+     */
+    private static void tell(ServerHandler client, String text) {
+        client.sendMessageToClient(new Message(text, "Server"));
     }
-}
\ No newline at end of file
+}
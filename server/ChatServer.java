@@ -1,28 +1,114 @@
 package server;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.util.ArrayList;
+import java.util.List;
 
 
 public class ChatServer {
+    private Tenants tenants;
+    private MessagePipeline pipeline;
+    private AdmissionControl admission;
+    private HeartbeatMonitor heartbeats;
+    private FileTransfers fileTransfers;
 
     public void start() {
-        try (ServerSocket serverSocket = new ServerSocket(50000)) {  // Port fixed to 50000
-            ConnectionPool pool = new ConnectionPool(); // NEW: Using ConnectionPool to track clients
-            ChatGroup chatGroup = new ChatGroup();
-            TopicHandler topicHandler = new TopicHandler();
-            System.out.println("Server started on port 50000"); // CHANGED: Added more descriptive logging
-
-            while (true) {
-                Socket socket = serverSocket.accept();
-                System.out.println("New client connected: " + socket.getInetAddress()); // NEW: Log each connection
-                ServerHandler handler = new ServerHandler(socket, pool, chatGroup, topicHandler);
-                // Don't add the client to the pool here - will be added after successful registration
-                new Thread(handler).start(); // CHANGED: Directly starting a new thread for the handler
+        try {
+            // Each tenant has its own users, groups and topics; the default one is loaded up front,
+            // the others when a client first asks for them
+            tenants = new Tenants();
+            tenants.getDefault();
+            pipeline = new MessagePipeline();
+            admission = new AdmissionControl(ServerConfig.MAX_CONNECTIONS, ServerConfig.MIN_FREE_HEAP_PERCENT);
+            heartbeats = new HeartbeatMonitor();
+            fileTransfers = new FileTransfers();
+            fileTransfers.start();
+
+            // With SO_REUSEPORT every acceptor gets its own socket and the kernel spreads connections
+            // between them; otherwise the acceptors share one socket and take turns in accept().
+            // It is only switched on when needed, as it also lets a second server bind the same port.
+            List<ServerSocket> sockets = new ArrayList<>();
+            boolean reusePort = ServerConfig.ACCEPTOR_THREADS > 1
+                    && reusePortSupported();
+            ServerSocket first = listen(reusePort);
+            sockets.add(first);
+            for (int i = 1; i < ServerConfig.ACCEPTOR_THREADS; i++) {
+                sockets.add(reusePort ? listen(true) : first);
+            }
+            System.out.println("Server started on port " + ServerConfig.PORT + " with " + ServerConfig.ACCEPTOR_THREADS
+                    + " acceptors" + (reusePort ? " (SO_REUSEPORT)" : "")); // CHANGED: Added more descriptive logging
+
+            List<Thread> acceptors = new ArrayList<>();
+            for (ServerSocket serverSocket : sockets) {
+                Thread acceptor = new Thread(() -> acceptLoop(serverSocket), "acceptor-" + (acceptors.size() + 1));
+                acceptor.start();
+                acceptors.add(acceptor);
+            }
+            for (Thread acceptor : acceptors) {
+                acceptor.join();
             }
         } catch (IOException e) {
             System.err.println("Server error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static boolean reusePortSupported() throws IOException {
+        try (ServerSocket probe = new ServerSocket()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+    }
+
+    private static ServerSocket listen(boolean reusePort) throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        if (reusePort) {
+            serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        serverSocket.bind(new InetSocketAddress(ServerConfig.PORT), ServerConfig.BACKLOG);
+        return serverSocket;
+    }
+
+    /**
+     * Only admission and thread start happen here; the stream handshake runs on the client's own thread
+     */
+    private void acceptLoop(ServerSocket serverSocket) {
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                System.err.println("Accept error: " + e.getMessage());
+                continue;
+            }
+            if (!admission.tryAdmit()) {
+                admission.reject(socket);
+                continue;
+            }
+            System.out.println("New client connected: " + socket.getInetAddress()); // NEW: Log each connection
+            try {
+                ClientConnection connection = new ClientConnection(socket, tenants, pipeline, fileTransfers);
+                // Don't add the client to the pool here - will be added after successful registration
+                heartbeats.track(connection);
+                new Thread(() -> {
+                    try {
+                        connection.run();
+                    } finally {
+                        admission.release();
+                    }
+                }, "client-" + socket.getPort()).start();
+            } catch (RuntimeException | Error e) {
+                admission.release();
+                System.err.println("Could not start handler: " + e.getMessage());
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
         }
     }
 
@@ -0,0 +1,435 @@
+package server;
+
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import shared.Message;
+
+/**
+ * One client socket: the object streams, the reader loop, the writer thread, the outbound queue
+ * and the delivery window. A connection carries one or more logical sessions, each a chat
+ * identity of its own (a ServerHandler). Session 0 is the connection's own and is always there;
+ * a bot or gateway can open more by sending REGISTER <name> frames tagged with a new session
+ * id, so hundreds of identities can share one socket, one reader and one writer. Frames are
+ * sequenced and acknowledged per connection, whichever session they belong to.
+ *
+ * Every session of a connection belongs to the same tenant, chosen by an optional HELLO frame
+ * sent before anything else; connections that start with any other frame join the default tenant.
+ *
+ * Once its own session has registered, the client is given a resume token. If the connection
+ * drops, a new one can send that token in a RESUME frame before registering, and gets every frame
+ * it had not acknowledged again, carrying on in the same sequence numbers. HELLO and RESUME
+ * frames and their answers are never sequenced, so nothing gets numbered before a resume.
+ */
+public class ClientConnection implements Runnable {
+    private static final SecureRandom tokenSource = new SecureRandom();
+
+    private final Socket socket;
+    private ObjectInputStream inStream;
+    private ObjectOutputStream outStream;
+    private FrameLimitInputStream frameLimit;
+    private final Object writeLock = new Object(); // guards outStream and deliveryWindow
+    private final OutboundQueue outbound = new OutboundQueue(ServerConfig.OUTBOUND_CHAT_QUEUE);
+    // Object streams remember every object written; forget them every so often
+    private static final int STREAM_RESET_INTERVAL = 256;
+    private DeliveryWindow deliveryWindow = new DeliveryWindow(ServerConfig.DELIVERY_WINDOW);
+    private final Tenants tenants;
+    private final MessagePipeline pipeline;
+    private final FileTransfers fileTransfers;
+    // Set by the reader thread once the tenant is known, before any session exists
+    private Tenant tenant;
+    // Every session's messages go through one lane, so they are handled in the order they were read
+    private MessagePipeline.Lane lane;
+    private final Map<Integer, ServerHandler> sessions = new HashMap<>(); // reader thread only
+    // Shared by every session, so opening more sessions or retrying REGISTER does not buy more
+    // messages or flood strikes; only used on the reader thread
+    private final RateLimiter rateLimiter = new RateLimiter();
+    private volatile ServerHandler primary;
+    private volatile String resumeToken; // given to the client once its own session has registered
+    // For the heartbeat monitor: any frame at all, and the last command or chat message
+    private volatile long lastHeard = System.currentTimeMillis();
+    private volatile long lastActive = lastHeard;
+
+    public ClientConnection(Socket socket, Tenants tenants, MessagePipeline pipeline, FileTransfers fileTransfers) {
+        this.socket = socket;
+        this.tenants = tenants;
+        this.pipeline = pipeline;
+        this.fileTransfers = fileTransfers;
+    }
+
+    @Override
+    public void run() {
+        try {
+            // Streams are set up here rather than on the accept thread: reading the client's stream
+            // header waits for the client. Output first to avoid potential deadlock.
+            socket.setSoTimeout((int) ServerConfig.HANDSHAKE_TIMEOUT_MS);
+            synchronized (writeLock) {
+                outStream = new ObjectOutputStream(socket.getOutputStream());
+            }
+            frameLimit = new FrameLimitInputStream(socket.getInputStream(), ServerConfig.MAX_FRAME_BYTES);
+            inStream = new ObjectInputStream(frameLimit);
+            // Array lengths are checked before the array is allocated; everything else is bounded by the byte limit
+            inStream.setObjectInputFilter(ObjectInputFilter.Config.createFilter(
+                    "maxarray=" + ServerConfig.MAX_FRAME_BYTES + ";maxdepth=16"));
+            socket.setSoTimeout(0);
+        } catch (IOException e) {
+            System.err.println("Error setting up streams: " + e.getMessage());
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            return;
+        }
+        Thread writer = new Thread(this::writeLoop, "writer-" + socket.getPort());
+        writer.setDaemon(true);
+        writer.start();
+        try {
+            Message msg = readFrame();
+            if (!joinTenant(msg)) {
+                return;
+            }
+            primary = newSession(0);
+            sessions.put(0, primary);
+            if (msg.getType() == Message.Type.HELLO) {
+                msg = readFrame();
+            }
+            while (true) {
+                if (msg.getType() == Message.Type.HELLO) {
+                    answer(msg, Message.handshakeReply(Message.Type.HELLO, Message.Status.INVALID,
+                            "This connection has already joined " + tenant.getName() + "."));
+                    msg = readFrame();
+                    continue;
+                }
+                if (msg.getType() == Message.Type.RESUME) {
+                    resume(msg);
+                    msg = readFrame();
+                    continue;
+                }
+                ServerHandler session = sessions.get(msg.getSession());
+                if (session == null) {
+                    session = openSession(msg);
+                }
+                if (session != null && !session.onFrame(msg)) {
+                    break; // the client said /exit
+                }
+                msg = readFrame();
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            System.err.println("Connection error with user " + describe() + ": " + e.getMessage());
+            outbound.close();
+        } finally {
+            // Subscriptions and presence belong to the sessions; drop them once what was read has been handled
+            for (ServerHandler session : sessions.values()) {
+                lane.submit(session::connectionClosed);
+            }
+            sessions.clear();
+            if (tenant != null) {
+                tenant.disconnected();
+            }
+        }
+    }
+
+    /**
+     * Picks the tenant from the first frame: the one a HELLO names, or the default tenant for
+     * any other frame. A refused HELLO is answered and the connection closed.
+     * @return false if the connection was refused
+     */
+    private boolean joinTenant(Message first) throws IOException {
+        boolean isHello = first.getType() == Message.Type.HELLO;
+        String name = isHello ? first.getMessageBody().trim().toLowerCase() : ServerConfig.DEFAULT_TENANT;
+        Tenant requested = null;
+        Message refusal;
+        if (!Tenants.isValidName(name)) {
+            refusal = Message.reply(Message.Status.INVALID, "Invalid tenant name: use up to 64 lower case letters, digits, '-' or '_'.");
+        } else if (!tenants.isServed(name)) {
+            refusal = Message.reply(Message.Status.NOT_FOUND, "Unknown tenant " + name + ".");
+        } else if ((requested = tenants.get(name)) == null) {
+            refusal = Message.reply(Message.Status.UNAVAILABLE, "Tenant limit reached, " + name + " is not available.");
+        } else if (!requested.tryConnect()) {
+            ServerStats.recordConnectionShed();
+            refusal = Message.reply(Message.Status.UNAVAILABLE, "Tenant " + name + " is busy: at most "
+                    + requested.getMaxConnections() + " connections. Please try again later.");
+        } else {
+            tenant = requested;
+            lane = pipeline.newLane(tenant.getPipelineQuota());
+            if (isHello) {
+                answer(first, Message.handshakeReply(Message.Type.HELLO, Message.Status.OK, "Welcome to " + name + "."));
+            }
+            return true;
+        }
+        answer(first, isHello ? Message.handshakeReply(Message.Type.HELLO, refusal.getStatus(), refusal.getMessageBody()) : refusal);
+        outbound.close(); // the writer sends the refusal, then closes the socket
+        return false;
+    }
+
+    /**
+     * Opens a logical session for a frame tagged with an unknown session id. Only a REGISTER
+     * frame opens one.
+     * @return The new session, or null if the frame was refused
+     */
+    private ServerHandler openSession(Message msg) {
+        int id = msg.getSession();
+        if (!msg.getMessageBody().startsWith("REGISTER ")) {
+            answer(msg, Message.reply(Message.Status.INVALID, "Session " + id + " is not open. Send REGISTER <username> on it first."));
+            return null;
+        }
+        // The connection's own session 0 does not count toward the cap, only the ones opened on top of it
+        int opened = sessions.containsKey(0) ? sessions.size() - 1 : sessions.size();
+        if (id < 0 || opened >= ServerConfig.MAX_SESSIONS_PER_CONNECTION) {
+            answer(msg, Message.reply(Message.Status.UNAVAILABLE, "Cannot open session " + id + ": at most "
+                    + ServerConfig.MAX_SESSIONS_PER_CONNECTION + " sessions per connection besides session 0."));
+            return null;
+        }
+        ServerHandler session = newSession(id);
+        sessions.put(id, session);
+        return session;
+    }
+
+    /**
+     * Answers a frame no session handles, tagged with its session and request id
+     */
+    private void answer(Message request, Message reply) {
+        send(reply.withSession(request.getSession()).withRequestId(request.getRequestId()), true);
+    }
+
+    private ServerHandler newSession(int id) {
+        return new ServerHandler(this, id, tenant.getPool(), tenant.getChatGroup(), tenant.getTopicHandler(),
+                tenant.getScheduler(), tenant.getFloodDetector(), fileTransfers);
+    }
+
+    /**
+     * Forgets a logical session that has ended; called on the reader thread
+     */
+    void sessionEnded(int id) {
+        sessions.remove(id);
+    }
+
+    MessagePipeline.Lane getLane() {
+        return lane;
+    }
+
+    RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Gets the window of unacknowledged frames. It is kept for a resume under the connection's
+     * resume token.
+     */
+    DeliveryWindow getDeliveryWindow() {
+        synchronized (writeLock) {
+            return deliveryWindow;
+        }
+    }
+
+    /**
+     * Queues a frame for the writer
+     * @param isControl true for replies and notices, which are written ahead of chat traffic
+     */
+    void send(Message frame, boolean isControl) {
+        outbound.offer(frame, isControl);
+    }
+
+    /**
+     * Stops taking frames; the writer sends whatever is still queued, then closes the socket
+     */
+    void close() {
+        outbound.close();
+    }
+
+    String getResumeToken() {
+        return resumeToken;
+    }
+
+    /**
+     * Reads the next command, chat, chunk, hello or resume frame, applying any acknowledgement the client
+     * piggybacked on it. ACK and PONG frames only count as signs of life. A frame over
+     * MAX_FRAME_BYTES ends the connection.
+     */
+    private Message readFrame() throws IOException, ClassNotFoundException {
+        while (true) {
+            Message msg;
+            try {
+                frameLimit.startFrame();
+                msg = (Message) inStream.readObject();
+            } catch (IOException e) {
+                if (frameLimit.isExceeded()) {
+                    ServerStats.recordOversizedFrame();
+                    System.out.println("Disconnecting " + describe() + " for sending a frame over " + ServerConfig.MAX_FRAME_BYTES + " bytes");
+                    send(new Message("You have been disconnected for sending a message over "
+                            + ServerConfig.MAX_FRAME_BYTES + " bytes. Long messages must be sent in parts.", "Server"), true);
+                    outbound.close();
+                }
+                throw e;
+            }
+            lastHeard = System.currentTimeMillis();
+            getDeliveryWindow().acknowledge(msg.getAck());
+            if (msg.getType() == Message.Type.CHAT || msg.getType() == Message.Type.CHUNK
+                    || msg.getType() == Message.Type.HELLO || msg.getType() == Message.Type.RESUME) {
+                lastActive = lastHeard;
+                return msg;
+            }
+        }
+    }
+
+    long getLastHeard() {
+        return lastHeard;
+    }
+
+    long getLastActive() {
+        return lastActive;
+    }
+
+    boolean isOpen() {
+        return !socket.isClosed();
+    }
+
+    String describe() {
+        ServerHandler session = primary;
+        return session != null && session.isRegistered() ? session.getUsername() : String.valueOf(socket.getRemoteSocketAddress());
+    }
+
+    /**
+     * Sends a heartbeat probe ahead of any queued chat
+     */
+    void ping() {
+        outbound.offer(Message.ping(), true);
+    }
+
+    /**
+     * Ends the connection for the heartbeat monitor. The reader and writer threads fail out of
+     * their blocking calls and clean up as for any broken connection.
+     * @param notice Told to the client first, or null if it is not answering anyway
+     */
+    void reap(String notice) {
+        System.out.println("Reaping " + describe());
+        if (notice != null) {
+            send(new Message(notice, "Server"), true);
+            outbound.close(); // the writer sends the notice, then closes the socket
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // Already closed
+        }
+    }
+
+    /**
+     * Gives the client the token to resume this connection with; called once its own session has registered
+     */
+    void issueResumeToken() {
+        byte[] bytes = new byte[16];
+        tokenSource.nextBytes(bytes);
+        resumeToken = HexFormat.of().formatHex(bytes);
+        send(Message.resume(resumeToken), true);
+    }
+
+    /**
+     * Handles a RESUME frame on the reader thread: adopts the window the dropped connection with
+     * that token left behind and retransmits the frames the client has not acknowledged, keeping
+     * their sequence numbers. Only allowed before this connection has numbered any frame, so the
+     * client sees one sequence space; the frame's ack is the last sequence it got on the old one.
+     */
+    private void resume(Message request) {
+        if (primary.isRegistered() || !getDeliveryWindow().isUnused()) {
+            answer(request, Message.handshakeReply(Message.Type.RESUME, Message.Status.INVALID,
+                    "A connection can only be resumed before anything else is sent on it."));
+            return;
+        }
+        DeliveryWindow previous = tenant.getPool().resumeSession(request.getMessageBody());
+        if (previous == null) {
+            answer(request, Message.handshakeReply(Message.Type.RESUME, Message.Status.NOT_FOUND, "Nothing to resume."));
+            return;
+        }
+        long clientAck = request.getAck();
+        int resent = 0;
+        boolean failed = false;
+        synchronized (writeLock) {
+            deliveryWindow = previous;
+            previous.acknowledge(clientAck);
+            try {
+                for (Message frame : previous.unackedAfter(clientAck)) {
+                    outStream.writeObject(frame);
+                    resent++;
+                }
+                outStream.flush();
+            } catch (IOException e) {
+                System.err.println("Error retransmitting to " + describe() + ": " + e.getMessage());
+                failed = true;
+            }
+        }
+        if (failed) {
+            try {
+                socket.close(); // the reader fails out and cleans up every session
+            } catch (IOException ignored) {
+            }
+            return;
+        }
+        answer(request, Message.handshakeReply(Message.Type.RESUME, Message.Status.OK, "Resumed: " + resent + " messages sent again."));
+    }
+
+    /**
+     * Writer thread: the only thread that writes queued frames to the socket. Frames get their
+     * sequence number as they are written, so sequence order is wire order. The stream is
+     * flushed once the queue runs dry, so bursts go out in as few packets as possible.
+     */
+    private void writeLoop() {
+        int written = 0;
+        try {
+            while (true) {
+                Message frame = outbound.poll();
+                if (frame == null) {
+                    synchronized (writeLock) {
+                        outStream.flush();
+                    }
+                    frame = outbound.take();
+                    if (frame == null) {
+                        break; // closed and everything written
+                    }
+                }
+                synchronized (writeLock) {
+                    outStream.writeObject(isSequenced(frame) ? deliveryWindow.stamp(frame) : frame);
+                    if (++written % STREAM_RESET_INTERVAL == 0) {
+                        outStream.reset();
+                    }
+                }
+            }
+            socket.close();
+        } catch (IOException e) {
+            System.err.println("Error sending message to " + describe() + ": " + e.getMessage());
+            // Keep what we couldn't write in the delivery window so a reconnect gets it
+            List<Message> unsent = outbound.drainAll();
+            synchronized (writeLock) {
+                for (Message frame : unsent) {
+                    if (isSequenced(frame)) {
+                        deliveryWindow.stamp(frame);
+                    }
+                }
+            }
+            try {
+                socket.close(); // the reader fails out and removes every session from the pool
+            } catch (IOException ignored) {
+                // Already broken
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Pings and handshake frames are not sequenced: there is no point retransmitting one after a
+     * resume, and a resumed connection must not have numbered anything of its own
+     */
+    private static boolean isSequenced(Message frame) {
+        return frame.getType() != Message.Type.PING && frame.getType() != Message.Type.HELLO
+                && frame.getType() != Message.Type.RESUME;
+    }
+}
@@ -1,67 +1,142 @@
 package server;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.stream.Collectors;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
 import shared.Message;
-import shared.SwearFilter;
 
 public class ConnectionPool {
-    private final List<ServerHandler> clients;
-    private final SwearFilter swearFilter = new SwearFilter();
+    private final Set<ServerHandler> clients;
+    // Copy of clients for readers that must not hold the lock; dropped on every join and leave and
+    // made again on the first read after, so a burst of joins costs one copy instead of one each
+    private volatile Set<ServerHandler> clientsSnapshot = Set.of();
+    private final FanOut fanOut;
+    private final SerialExecutor globalChat; // orders global chat like a group's mailbox, so everyone sees one order
+    private final PresenceAnnouncer presenceAnnouncer;
+    // Unacked frames of dropped connections by resume token, kept (oldest evicted first) until the client resumes
+    private final Map<String, DeliveryWindow> detachedSessions = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, DeliveryWindow> eldest) {
+            return size() > ServerConfig.DETACHED_SESSIONS;
+        }
+    };
+
+    // Presence: bumped on every join/leave/rename, with a bounded journal of the changes
+    private volatile int onlineCount = 0;
+    private long presenceVersion = 0;
+    private PresenceSnapshot presenceSnapshot = new PresenceSnapshot(0, new String[0]);
+    private final Deque<PresenceDelta> presenceJournal = new ArrayDeque<>();
+
+    private record PresenceDelta(long version, boolean added, String username) {
+    }
 
-    public ConnectionPool() {
-        clients = new ArrayList<>();
+    /**
+     * @param workers Threads that deliver global chat, may be shared with other pools and groups
+     * @param timer Runs the batched join/leave announcements, may be shared with other pools
+     */
+    public ConnectionPool(FanOut fanOut, Executor workers, ScheduledExecutorService timer) {
+        clients = new LinkedHashSet<>();
+        this.fanOut = fanOut;
+        this.globalChat = new SerialExecutor(workers);
+        this.presenceAnnouncer = new PresenceAnnouncer(this, timer);
     }
 
     public synchronized void addClient(ServerHandler client) {
         // Check if client is already in the pool
-        if (!clients.contains(client)) {
-            clients.add(client);
-            // Announce new client to all existing clients
-            String username = client.getUsername();
-            String announcement = "User " + username + " joined the chat.";
-            // Don't filter server announcements - direct message construction
-            Message announceMsg = new Message(announcement, "Server");
-            for (ServerHandler existingClient : clients) {
-                if (existingClient != client) { // Don't send to the new client
-                    existingClient.sendMessageToClient(announceMsg);
-                }
-            }
+        if (clients.add(client)) {
+            clientsChanged();
+            recordPresence(true, client.getUsername());
+            // Announce new client to all existing clients, batched with other joins/leaves
+            presenceAnnouncer.userJoined(client.getUsername());
         }
     }
 
     public synchronized void removeClient(ServerHandler client) {
         if (clients.remove(client)) {
-            String username = client.getUsername();
-            String announcement = "User " + username + " left the chat.";
-            // Don't filter server announcements - direct message construction
-            Message announceMsg = new Message(announcement, "Server");
-            for (ServerHandler remainingClient : clients) {
-                remainingClient.sendMessageToClient(announceMsg);
-            }
+            clientsChanged();
+            recordPresence(false, client.getUsername());
+            presenceAnnouncer.userLeft(client.getUsername());
         }
     }
 
-    public synchronized void broadcast(Message msg, ServerHandler sender) {
-        // Special handling for Server messages - never filter them
-        boolean isServerMessage = msg.getUser() != null && msg.getUser().equals("Server");
+    private void clientsChanged() {
+        onlineCount = clients.size();
+        clientsSnapshot = null;
+    }
 
-        for (ServerHandler client : clients) {
-            if (client != sender) {
-                // If it's a server message, send it directly without filtering
-                if (isServerMessage) {
-                    Message serverMsg = new Message("GLOBAL | " + msg.getUser() + ": " + msg.getMessageBody(), "");
-                    client.sendMessageToClient(serverMsg);
-                } else {
-                    // Regular user message, let the ServerHandler handle any needed filtering
-                    String filteredMessage = swearFilter.filter(msg.getMessageBody());
-                    Message userMsg = new Message("GLOBAL | " + msg.getUser() + ": " + filteredMessage, "");
-                    client.sendMessageToClient(userMsg);
+    /**
+     * Takes out a client whose connection dropped without /exit. Anything it never acknowledged
+     * is kept under the connection's resume token, which only that client was given, so it can
+     * be retransmitted when it reconnects.
+     */
+    public synchronized void clientDropped(ServerHandler client) {
+        if (!clients.contains(client)) {
+            return;
+        }
+        String token = client.getResumeToken();
+        DeliveryWindow window = client.getDeliveryWindow();
+        if (token != null && window != null && window.hasUnacked()) {
+            detachedSessions.put(token, window);
+        }
+        removeClient(client);
+    }
+
+    public void broadcast(Message msg, ServerHandler sender) {
+        broadcast(msg, sender, TopicMatches.NONE);
+    }
+
+    /**
+     * Sends a message to every other client; topic subscribers get it once, tagged with their topics.
+     * Chat text has already been through the swear filter when the sender's line was relayed.
+     * Broadcasts are handed to one sequencer and delivered one after another, so senders on
+     * different pipeline lanes cannot interleave and every client sees global chat in one order.
+     */
+    public void broadcast(Message msg, ServerHandler sender, TopicMatches matches) {
+        globalChat.execute(() -> {
+            String body = msg.getMessageBody();
+            Collection<ServerHandler> audience = snapshotClients();
+
+            // Share one frame; big audiences are written in parallel without us waiting
+            Message frame = new Message("GLOBAL | " + msg.getUser() + ": " + body, "");
+            fanOut.deliver(audience, frame, sender, matches);
+            // Subscribers who aren't in the chat (not registered) still get the topic frame
+            matches.deliverRemaining(msg, sender, audience::contains);
+            // Log the broadcast on the server side
+            System.out.println("Broadcast from " + msg.getUser() + ": " + msg.getMessageBody());
+        });
+    }
+
+    /**
+     * Takes over the delivery window left behind by a dropped connection
+     * @param token The resume token that connection was given
+     * @return The detached window, or null if there is nothing to resume
+     */
+    public synchronized DeliveryWindow resumeSession(String token) {
+        return detachedSessions.remove(token);
+    }
+
+    /**
+     * Gets the connected clients so callers can send to them without holding the pool lock
+     * @return Read-only view that does not change as clients come and go
+     */
+    public Collection<ServerHandler> snapshotClients() {
+        Set<ServerHandler> snapshot = clientsSnapshot;
+        if (snapshot == null) {
+            synchronized (this) {
+                snapshot = clientsSnapshot;
+                if (snapshot == null) {
+                    snapshot = Collections.unmodifiableSet(new LinkedHashSet<>(clients));
+                    clientsSnapshot = snapshot;
                 }
             }
         }
-        // Log the broadcast on the server side
-        System.out.println("Broadcast from " + msg.getUser() + ": " + msg.getMessageBody());
+        return snapshot;
     }
 
     public synchronized ServerHandler findClientByUsername(String username) {
@@ -74,25 +149,94 @@ public class ConnectionPool {
     }
     
     /**
-     * Gets a list of all online users
-     * @return String containing a list of all online usernames
+     * Updates presence after a registered client changes username
      */
-    public synchronized String listUsers() {
-        if (clients.isEmpty()) {
+    public synchronized void clientRenamed(String oldName, String newName) {
+        if (!oldName.equals(newName)) {
+            recordPresence(false, oldName);
+            recordPresence(true, newName);
+        }
+    }
+
+    private void recordPresence(boolean added, String username) {
+        presenceVersion++;
+        presenceJournal.addLast(new PresenceDelta(presenceVersion, added, username));
+        if (presenceJournal.size() > ServerConfig.PRESENCE_JOURNAL) {
+            presenceJournal.removeFirst();
+        }
+    }
+
+    /**
+     * Gets the presence snapshot, rebuilding it only if someone joined, left or renamed since
+     */
+    private synchronized PresenceSnapshot currentSnapshot() {
+        if (presenceSnapshot.getVersion() != presenceVersion) {
+            String[] names = new String[clients.size()];
+            int i = 0;
+            for (ServerHandler client : clients) {
+                names[i++] = client.getUsername();
+            }
+            presenceSnapshot = new PresenceSnapshot(presenceVersion, names);
+        }
+        return presenceSnapshot;
+    }
+
+    /**
+     * Gets one page of online users
+     * @param after Last username of the previous page, or empty for the first page
+     * @return String containing a page of online usernames and the command for the next page
+     */
+    public String listUsers(String after) {
+        PresenceSnapshot snapshot = currentSnapshot();
+        if (snapshot.size() == 0) {
             return "No users online";
         }
-        String userList = clients.stream()
-                .map(ServerHandler::getUsername)
-                .collect(Collectors.joining(", "));
-        return "Users online = " + userList;
+        int from = snapshot.indexAfter(after);
+        int to = Math.min(from + ServerConfig.PRESENCE_PAGE_SIZE, snapshot.size());
+        if (from >= to) {
+            return "No more users online (version " + snapshot.getVersion() + ")";
+        }
+        StringBuilder sb = new StringBuilder("Users online = ");
+        for (int i = from; i < to; i++) {
+            if (i > from) {
+                sb.append(", ");
+            }
+            sb.append(snapshot.get(i));
+        }
+        sb.append(" (").append(from + 1).append('-').append(to).append(" of ").append(snapshot.size())
+                .append(", version ").append(snapshot.getVersion()).append(')');
+        if (to < snapshot.size()) {
+            sb.append("\nMore: /user list after ").append(snapshot.get(to - 1));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Gets the joins and leaves since a presence version the client already holds
+     * @param version Version from an earlier /user list or /user since reply
+     * @return String of +added / -removed usernames, or a request to re-list if the version is too old
+     */
+    public synchronized String usersSince(long version) {
+        if (version >= presenceVersion) {
+            return "Presence version " + presenceVersion + ": no changes";
+        }
+        if (presenceJournal.isEmpty() || presenceJournal.peekFirst().version() > version + 1) {
+            return "Presence version " + version + " is too old, use /user list";
+        }
+        StringBuilder sb = new StringBuilder("Presence version " + presenceVersion + " since " + version + ":");
+        for (PresenceDelta delta : presenceJournal) {
+            if (delta.version() > version) {
+                sb.append(' ').append(delta.added() ? '+' : '-').append(delta.username());
+            }
+        }
+        return sb.toString();
     }
     
     /**
      * Gets the count of all online users
      * @return String containing the count of online users
      */
-    public synchronized String getUserCount() {
-        int count = clients.size();
-        return "Users online = " + count;
+    public String getUserCount() {
+        return "Users online = " + onlineCount;
     }
 }
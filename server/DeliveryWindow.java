@@ -0,0 +1,84 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import shared.Message;
+
+/**
+ * Per-connection window of frames sent but not yet acknowledged by the client.
+ * Every outbound frame gets the next sequence number; the client sends back the highest
+ * sequence it received (cumulative ack) in batches, which frees everything up to it.
+ * The window is bounded: when a client stops acking, the oldest frames are overwritten.
+ */
+public class DeliveryWindow {
+    private final Message[] frames;
+    private long nextSequence = 1;
+    private long acked = 0; // highest sequence acknowledged by the client
+
+    public DeliveryWindow(int capacity) {
+        frames = new Message[Math.max(1, capacity)];
+    }
+
+    /**
+     * Assigns the next sequence number to a message and keeps it until acknowledged
+     * @param msg The message to send
+     * @return A copy of the message carrying its sequence number
+     */
+    public synchronized Message stamp(Message msg) {
+        long sequence = nextSequence++;
+        Message framed = msg.withSequence(sequence);
+        frames[slot(sequence)] = framed;
+        return framed;
+    }
+
+    /**
+     * Releases every frame up to and including the given sequence number
+     * @param ack Cumulative acknowledgement from the client
+     */
+    public synchronized void acknowledge(long ack) {
+        if (ack <= acked) {
+            return;
+        }
+        ack = Math.min(ack, nextSequence - 1);
+        for (long seq = Math.max(acked + 1, oldestRetained()); seq <= ack; seq++) {
+            frames[slot(seq)] = null;
+        }
+        acked = ack;
+    }
+
+    /**
+     * Gets the frames the client has not seen yet, in sequence order
+     * @param clientAck Highest sequence the client reports having received
+     * @return Retained frames after clientAck
+     */
+    public synchronized List<Message> unackedAfter(long clientAck) {
+        List<Message> gap = new ArrayList<>();
+        long from = Math.max(Math.max(clientAck, acked) + 1, oldestRetained());
+        for (long seq = from; seq < nextSequence; seq++) {
+            Message frame = frames[slot(seq)];
+            if (frame != null) {
+                gap.add(frame);
+            }
+        }
+        return gap;
+    }
+
+    /**
+     * @return true until the first frame is stamped
+     */
+    public synchronized boolean isUnused() {
+        return nextSequence == 1;
+    }
+
+    public synchronized boolean hasUnacked() {
+        return acked < nextSequence - 1;
+    }
+
+    private long oldestRetained() {
+        return Math.max(1, nextSequence - frames.length);
+    }
+
+    private int slot(long sequence) {
+        return (int) (sequence % frames.length);
+    }
+}
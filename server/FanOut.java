@@ -0,0 +1,108 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import shared.Message;
+
+/**
+ * Delivers one frame to many recipients. Small audiences are served inline on the caller's
+ * thread. Above a threshold the recipients are split into partitions that are written in
+ * parallel and the caller returns straight away. All partitions share the same frame.
+ *
+ * A recipient always lands in the same partition lane and lanes run their work in order, so
+ * each recipient still receives fan-out frames in the order they were sent. While any
+ * partitioned delivery is still running, small ones go through the lanes as well, so they
+ * can't overtake it.
+ */
+public class FanOut {
+    private final SerialExecutor[] lanes;
+    private final int threshold;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    public FanOut() {
+        this(ServerConfig.FANOUT_THREADS, ServerConfig.FANOUT_THRESHOLD);
+    }
+
+    public FanOut(int threads, int threshold) {
+        this(newWorkers(threads), threads, threshold);
+    }
+
+    /**
+     * Creates a fan-out with its own lanes on shared worker threads, so several chat spaces
+     * can each order their own deliveries without a thread pool apiece
+     * @param threads Size of the worker pool
+     */
+    public FanOut(ExecutorService workers, int threads, int threshold) {
+        this.threshold = threshold;
+        lanes = new SerialExecutor[threads * 2];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new SerialExecutor(workers);
+        }
+    }
+
+    /**
+     * Sends a frame to every recipient except one. The caller must not modify recipients
+     * afterwards; pass a copy if the collection is shared.
+     * @param exclude Usually the sender, or null
+     */
+    public void deliver(Collection<ServerHandler> recipients, Message frame, ServerHandler exclude) {
+        deliver(recipients, frame, exclude, TopicMatches.NONE);
+    }
+
+    /**
+     * Same as deliver, but recipients who matched topics get the frame tagged with them
+     */
+    public void deliver(Collection<ServerHandler> recipients, Message frame, ServerHandler exclude, TopicMatches matches) {
+        if (recipients.size() < threshold && inFlight.get() == 0) {
+            for (ServerHandler recipient : recipients) {
+                if (recipient != exclude) {
+                    recipient.sendMessageToClient(matches.frameFor(recipient, frame));
+                }
+            }
+            return;
+        }
+
+        List<List<ServerHandler>> partitions = new ArrayList<>(lanes.length);
+        for (int i = 0; i < lanes.length; i++) {
+            partitions.add(new ArrayList<>());
+        }
+        for (ServerHandler recipient : recipients) {
+            if (recipient != exclude) {
+                partitions.get(laneOf(recipient)).add(recipient);
+            }
+        }
+        for (int i = 0; i < lanes.length; i++) {
+            List<ServerHandler> partition = partitions.get(i);
+            if (partition.isEmpty()) {
+                continue;
+            }
+            inFlight.incrementAndGet();
+            lanes[i].execute(() -> {
+                try {
+                    for (ServerHandler recipient : partition) {
+                        recipient.sendMessageToClient(matches.frameFor(recipient, frame));
+                    }
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            });
+        }
+    }
+
+    public static ExecutorService newWorkers(int threads) {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "fanout-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private int laneOf(ServerHandler recipient) {
+        return (System.identityHashCode(recipient) & Integer.MAX_VALUE) % lanes.length;
+    }
+}
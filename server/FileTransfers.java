@@ -0,0 +1,358 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * File attachments, sent over a side channel so chat keeps flowing on the main connection.
+ *
+ * The sender asks over chat and gets an upload token back, then connects to FILE_PORT and
+ * sends "UPLOAD <token>\n" followed by the file's bytes. The server spools them straight to
+ * disk. Each recipient then gets an offer with its own download token. It connects and sends
+ * "DOWNLOAD <token>\n", and the spooled file is streamed back with FileChannel.transferTo.
+ * File contents never pass through the heap or Java serialization. A spooled file is deleted
+ * once every recipient has downloaded it, or after FILE_TTL_MS.
+ *
+ * A few threads serve the file port, so nothing may hold one for long: the request line must
+ * arrive within HANDSHAKE_TIMEOUT_MS, a transfer that stalls for FILE_IDLE_TIMEOUT_MS is dropped,
+ * and connections that find FILE_QUEUE others already waiting are closed. Each sender may have
+ * only FILE_UPLOADS_PER_SENDER uploads and FILE_BYTES_PER_SENDER bytes announced or spooled.
+ */
+public class FileTransfers {
+    private static final int MAX_HEADER = 128;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * One file on disk, shared by all of its recipients
+     */
+    public static final class SpooledFile {
+        private final Path path;
+        private final String name;
+        private final long size;
+        private final String sender;
+        private final AtomicInteger holders = new AtomicInteger(1); // pending downloads, plus the offer in progress
+        private final AtomicBoolean deleted = new AtomicBoolean(); // gives the sender's quota back once
+
+        private SpooledFile(Path path, String name, long size, String sender) {
+            this.path = path;
+            this.name = name;
+            this.size = size;
+            this.sender = sender;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public String getSender() {
+            return sender;
+        }
+    }
+
+    private record Upload(String name, long size, String sender, Consumer<SpooledFile> onComplete) {
+    }
+
+    /**
+     * Uploads and bytes a sender has announced or spooled and not yet seen deleted
+     */
+    private static final class Quota {
+        int uploads;
+        long bytes;
+    }
+
+    private final Path spoolDir;
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    private final Map<String, SpooledFile> downloads = new ConcurrentHashMap<>();
+    private final Map<String, Quota> quotas = new HashMap<>(); // guarded by itself, keyed by sender
+    private final ExecutorService workers;
+    private final ScheduledExecutorService timer;
+
+    public FileTransfers() throws IOException {
+        spoolDir = Paths.get(ServerConfig.SPOOL_DIR);
+        Files.createDirectories(spoolDir);
+        // Tokens don't survive a restart, so anything left over can never be downloaded
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(spoolDir)) {
+            for (Path leftover : leftovers) {
+                Files.deleteIfExists(leftover);
+            }
+        }
+        AtomicInteger counter = new AtomicInteger();
+        workers = new ThreadPoolExecutor(ServerConfig.FILE_THREADS, ServerConfig.FILE_THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(ServerConfig.FILE_QUEUE), r -> {
+            Thread t = new Thread(r, "file-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "file-timer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Starts listening for upload and download connections
+     */
+    public void start() throws IOException {
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(ServerConfig.FILE_PORT), ServerConfig.BACKLOG);
+        Thread acceptor = new Thread(() -> {
+            while (listener.isOpen()) {
+                try {
+                    SocketChannel channel = listener.accept();
+                    try {
+                        workers.execute(() -> serve(channel));
+                    } catch (RejectedExecutionException e) {
+                        // Every thread is busy and enough are waiting; the client can try again
+                        ServerStats.recordFileConnectionDropped();
+                        channel.close();
+                    }
+                } catch (IOException e) {
+                    System.err.println("File transfer accept error: " + e.getMessage());
+                }
+            }
+        }, "file-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        System.out.println("File transfers on port " + ServerConfig.FILE_PORT);
+    }
+
+    /**
+     * Checks the size policy and registers an upload
+     * @param onComplete Called with the spooled file once all of it has arrived
+     * @return The upload token, or null if the file is too big or the sender already has as many
+     *         uploads or bytes waiting as allowed
+     */
+    public String expectUpload(String name, long size, String sender, Consumer<SpooledFile> onComplete) {
+        if (size < 0 || size > ServerConfig.MAX_FILE_BYTES || !reserve(sender, size)) {
+            return null;
+        }
+        String token = newToken();
+        uploads.put(token, new Upload(name, size, sender, onComplete));
+        timer.schedule(() -> {
+            Upload unused = uploads.remove(token);
+            if (unused != null) {
+                refund(unused.sender(), unused.size());
+            }
+        }, ServerConfig.FILE_TTL_MS, TimeUnit.MILLISECONDS);
+        return token;
+    }
+
+    /**
+     * Gives one recipient its own download token for a spooled file
+     */
+    public String addDownload(SpooledFile file) {
+        file.holders.incrementAndGet();
+        String token = newToken();
+        downloads.put(token, file);
+        timer.schedule(() -> {
+            if (downloads.remove(token) != null) {
+                release(file);
+            }
+        }, ServerConfig.FILE_TTL_MS, TimeUnit.MILLISECONDS);
+        return token;
+    }
+
+    /**
+     * Called once every recipient has been offered the file; deletes it if nobody was
+     */
+    public void offered(SpooledFile file) {
+        release(file);
+    }
+
+    /**
+     * Makes a file name safe to show and store: no directories, no control characters
+     */
+    public static String sanitizeName(String name) {
+        String base = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < base.length() && sb.length() < 255; i++) {
+            char c = base.charAt(i);
+            sb.append(Character.isISOControl(c) ? '_' : c);
+        }
+        String safe = sb.toString().trim();
+        return safe.isEmpty() || safe.equals(".") || safe.equals("..") ? "file" : safe;
+    }
+
+    private void serve(SocketChannel channel) {
+        try (channel) {
+            // Reads through the socket's stream honour its timeout, which reads on the channel don't
+            Socket socket = channel.socket();
+            InputStream in = socket.getInputStream();
+            socket.setSoTimeout((int) ServerConfig.HANDSHAKE_TIMEOUT_MS);
+            String[] header = readHeader(in).split(" ", 2);
+            if (header.length != 2) {
+                return;
+            }
+            socket.setSoTimeout((int) ServerConfig.FILE_IDLE_TIMEOUT_MS);
+            if (header[0].equals("UPLOAD")) {
+                receive(in, header[1]);
+            } else if (header[0].equals("DOWNLOAD")) {
+                send(channel, header[1]);
+            }
+        } catch (SocketTimeoutException e) {
+            ServerStats.recordFileConnectionDropped();
+        } catch (IOException e) {
+            System.err.println("File transfer failed: " + e.getMessage());
+        }
+    }
+
+    private void receive(InputStream in, String token) throws IOException {
+        Upload upload = uploads.remove(token);
+        if (upload == null) {
+            return; // unknown or expired token
+        }
+        Path path = spoolDir.resolve(newToken());
+        boolean complete = false;
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            ReadableByteChannel source = Channels.newChannel(in);
+            long position = 0;
+            while (position < upload.size()) {
+                long read = file.transferFrom(source, position, upload.size() - position);
+                if (read <= 0) {
+                    break; // the sender went away part way through
+                }
+                position += read;
+            }
+            complete = position == upload.size();
+        } finally {
+            if (!complete) {
+                Files.deleteIfExists(path);
+                refund(upload.sender(), upload.size());
+            }
+        }
+        if (complete) {
+            ServerStats.recordFileUploaded(upload.size());
+            upload.onComplete().accept(new SpooledFile(path, upload.name(), upload.size(), upload.sender()));
+        }
+    }
+
+    private void send(SocketChannel channel, String token) throws IOException {
+        SpooledFile file = downloads.remove(token);
+        if (file == null) {
+            return;
+        }
+        // Writes have no timeout: a reader that stops taking bytes has its connection closed instead
+        AtomicLong sent = new AtomicLong();
+        long[] lastSeen = {-1};
+        ScheduledFuture<?> watchdog = timer.scheduleWithFixedDelay(() -> {
+            if (sent.get() == lastSeen[0]) {
+                ServerStats.recordFileConnectionDropped();
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // The transfer fails out either way
+                }
+            }
+            lastSeen[0] = sent.get();
+        }, ServerConfig.FILE_IDLE_TIMEOUT_MS, ServerConfig.FILE_IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        try (FileChannel in = FileChannel.open(file.path, StandardOpenOption.READ)) {
+            while (sent.get() < file.size) {
+                sent.addAndGet(in.transferTo(sent.get(), file.size - sent.get(), channel));
+            }
+            ServerStats.recordFileDownloaded();
+        } finally {
+            watchdog.cancel(false);
+            release(file);
+        }
+    }
+
+    private void release(SpooledFile file) {
+        if (file.holders.decrementAndGet() == 0 && file.deleted.compareAndSet(false, true)) {
+            try {
+                Files.deleteIfExists(file.path);
+            } catch (IOException e) {
+                System.err.println("Could not delete spooled file " + file.path + ": " + e.getMessage());
+            }
+            refund(file.sender, file.size);
+        }
+    }
+
+    /**
+     * @return false if the sender already has as many uploads or bytes waiting as allowed
+     */
+    private boolean reserve(String sender, long size) {
+        synchronized (quotas) {
+            Quota quota = quotas.get(sender);
+            if (quota == null) {
+                quota = new Quota();
+                quotas.put(sender, quota);
+            } else if (quota.uploads >= ServerConfig.FILE_UPLOADS_PER_SENDER || quota.bytes + size > ServerConfig.FILE_BYTES_PER_SENDER) {
+                return false;
+            }
+            quota.uploads++;
+            quota.bytes += size;
+            return true;
+        }
+    }
+
+    private void refund(String sender, long size) {
+        synchronized (quotas) {
+            Quota quota = quotas.get(sender);
+            if (quota == null) {
+                return;
+            }
+            quota.bytes -= size;
+            if (--quota.uploads == 0) {
+                quotas.remove(sender);
+            }
+        }
+    }
+
+    private static String readHeader(InputStream in) throws IOException {
+        byte[] line = new byte[MAX_HEADER];
+        int length = 0;
+        while (length < line.length) {
+            int b = in.read();
+            if (b < 0 || b == '\n') {
+                break;
+            }
+            line[length++] = (byte) b;
+        }
+        return new String(line, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    private static String newToken() {
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        StringBuilder sb = new StringBuilder(32);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,174 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import shared.SwearFilter;
+
+/**
+ * Detects the same line being flooded across many accounts. Message bodies are normalised
+ * (case, punctuation and spacing ignored) and hashed into a count-min sketch that covers a
+ * sliding window made of several sub-windows; the oldest sub-window is cleared as time moves
+ * on, so memory stays constant no matter how much traffic passes through. The most frequent
+ * payloads are kept in a small heavy-hitters list for operators' /stats, as a hash and a short
+ * filtered sample so the report does not repeat what was flooded into other groups or chats.
+ */
+public class FloodDetector {
+    private static final int DEPTH = 4;
+    private static final int SUB_WINDOWS = 6;
+    private static final int HEAVY_HITTERS = 10;
+    private static final int SAMPLE_LENGTH = 20;
+    private static final SwearFilter swearFilter = new SwearFilter();
+
+    private final int width;
+    private final long subWindowMs;
+    private final int threshold;
+    private final int minLength;
+    private final int[][][] counts; // [sub-window][row][column]
+    private long currentSubWindow;
+    private final List<HeavyHitter> heavyHitters = new ArrayList<>();
+
+    private static class HeavyHitter {
+        final long hash;
+        final String sample;
+        int estimate;
+
+        HeavyHitter(long hash, String sample, int estimate) {
+            this.hash = hash;
+            this.sample = sample;
+            this.estimate = estimate;
+        }
+    }
+
+    public FloodDetector() {
+        this(ServerConfig.FLOOD_SKETCH_WIDTH, ServerConfig.FLOOD_WINDOW_MS, ServerConfig.FLOOD_THRESHOLD, ServerConfig.FLOOD_MIN_LENGTH);
+    }
+
+    /**
+     * @param width     Counters per sketch row, more means fewer over-estimates
+     * @param windowMs  Length of the sliding window
+     * @param threshold Copies of one payload allowed within the window
+     * @param minLength Shorter payloads ("hi", "lol") are never suppressed
+     */
+    public FloodDetector(int width, long windowMs, int threshold, int minLength) {
+        this.width = width;
+        this.subWindowMs = Math.max(1, windowMs / SUB_WINDOWS);
+        this.threshold = threshold;
+        this.minLength = minLength;
+        this.counts = new int[SUB_WINDOWS][DEPTH][width];
+        this.currentSubWindow = System.currentTimeMillis() / subWindowMs;
+    }
+
+    /**
+     * Counts one occurrence of a message body
+     * @param body The message text about to be routed
+     * @return true if the payload is being flooded and should not be routed
+     */
+    public synchronized boolean isFlood(String body) {
+        long hash = normalisedHash(body);
+        if (hash == 0) {
+            return false; // too short to judge
+        }
+        rotate(System.currentTimeMillis() / subWindowMs);
+
+        int[][] live = counts[(int) (currentSubWindow % SUB_WINDOWS)];
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            int column = column(hash, row);
+            live[row][column]++;
+            int total = 0;
+            for (int[][] subWindow : counts) {
+                total += subWindow[row][column];
+            }
+            estimate = Math.min(estimate, total);
+        }
+
+        if (estimate > threshold) {
+            trackHeavyHitter(hash, body, estimate);
+            ServerStats.recordFloodSuppressed();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Gets the most flooded payloads seen recently
+     * @return String with one payload per line, or an empty string if there are none
+     */
+    public synchronized String heavyHittersReport() {
+        if (heavyHitters.isEmpty()) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder("\n- flooded payloads:");
+        for (HeavyHitter hitter : heavyHitters) {
+            sb.append(String.format("\n  %dx #%08x \"%s\"", hitter.estimate, (int) hitter.hash, hitter.sample));
+        }
+        return sb.toString();
+    }
+
+    private void rotate(long subWindow) {
+        if (subWindow == currentSubWindow) {
+            return;
+        }
+        // Clear every sub-window we skipped over, at most all of them
+        long steps = Math.min(subWindow - currentSubWindow, SUB_WINDOWS);
+        for (long i = 1; i <= steps; i++) {
+            for (int[] row : counts[(int) ((currentSubWindow + i) % SUB_WINDOWS)]) {
+                Arrays.fill(row, 0);
+            }
+        }
+        currentSubWindow = subWindow;
+        if (steps == SUB_WINDOWS) {
+            heavyHitters.clear(); // a whole window went by quietly
+        }
+    }
+
+    private void trackHeavyHitter(long hash, String body, int estimate) {
+        for (HeavyHitter hitter : heavyHitters) {
+            if (hitter.hash == hash) {
+                hitter.estimate = estimate;
+                return;
+            }
+        }
+        String filtered = swearFilter.filter(body.strip());
+        String sample = filtered.length() > SAMPLE_LENGTH ? filtered.substring(0, SAMPLE_LENGTH) + "..." : filtered;
+        if (heavyHitters.size() < HEAVY_HITTERS) {
+            heavyHitters.add(new HeavyHitter(hash, sample, estimate));
+            return;
+        }
+        HeavyHitter smallest = heavyHitters.get(0);
+        for (HeavyHitter hitter : heavyHitters) {
+            if (hitter.estimate < smallest.estimate) {
+                smallest = hitter;
+            }
+        }
+        if (smallest.estimate < estimate) {
+            heavyHitters.remove(smallest);
+            heavyHitters.add(new HeavyHitter(hash, sample, estimate));
+        }
+    }
+
+    private int column(long hash, int row) {
+        // Kirsch-Mitzenmacher: derive the row hashes from the two halves of one 64-bit hash
+        int h = (int) hash + row * (int) (hash >>> 32);
+        return (h & Integer.MAX_VALUE) % width;
+    }
+
+    /**
+     * FNV-1a over the lower-cased letters and digits only, so "BUY NOW!!!" and "buy now" collide
+     * @return The hash, or 0 if fewer than minLength characters count
+     */
+    private long normalisedHash(String body) {
+        long hash = 0xcbf29ce484222325L;
+        int length = 0;
+        for (int i = 0; i < body.length(); i++) {
+            char c = body.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                hash ^= Character.toLowerCase(c);
+                hash *= 0x100000001b3L;
+                length++;
+            }
+        }
+        return length < minLength ? 0 : hash;
+    }
+}
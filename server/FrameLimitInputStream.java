@@ -0,0 +1,72 @@
+package server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Caps how many bytes one inbound frame may take. The reader calls startFrame() before each
+ * readObject, and reads past the limit fail, so an oversized message is cut off as it arrives
+ * instead of being built up on the heap. An object stream can't skip the rest of a frame, so
+ * the connection has to be closed afterwards.
+ */
+public class FrameLimitInputStream extends FilterInputStream {
+    private final long limit;
+    private long remaining;
+    private boolean exceeded = false;
+
+    public FrameLimitInputStream(InputStream in, long limit) {
+        super(in);
+        this.limit = limit;
+        this.remaining = limit;
+    }
+
+    public void startFrame() {
+        remaining = limit;
+    }
+
+    /**
+     * @return true if the last read failed because the frame was over the limit
+     */
+    public boolean isExceeded() {
+        return exceeded;
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkRemaining();
+        int b = super.read();
+        if (b >= 0) {
+            remaining--;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        checkRemaining();
+        int read = super.read(b, off, (int) Math.min(len, remaining));
+        if (read > 0) {
+            remaining -= read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        checkRemaining();
+        long skipped = super.skip(Math.min(n, remaining));
+        remaining -= skipped;
+        return skipped;
+    }
+
+    private void checkRemaining() throws IOException {
+        if (remaining <= 0) {
+            exceeded = true;
+            throw new IOException("frame larger than " + limit + " bytes");
+        }
+    }
+}
@@ -0,0 +1,401 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import shared.Message;
+
+/**
+ * One chat group, run as an actor: every operation on the group is a message in its mailbox,
+ * and the mailbox is drained by a shared scheduler one message at a time. That gives a total
+ * order within the group without locks, while different groups run in parallel.
+ * The member set is only ever touched from inside the mailbox.
+ *
+ * Very large, very busy groups switch to digest delivery: instead of every message going to
+ * every member, messages are collected for a short window and members get one digest frame
+ * per window. Members can opt back into real-time delivery with /group realtime. A digest leaves
+ * out the member's own lines and carries the topics its lines matched for them, like real-time
+ * frames do. While in digest mode the flush timer keeps running even if nobody posts, so a group
+ * that has gone quiet switches back.
+ */
+public class GroupActor {
+    private final String name;
+    private final ChatGroup registry;
+    private final SerialExecutor mailbox;
+    private final FanOut fanOut;
+    private final Set<ServerHandler> members = new HashSet<>();
+    private volatile int memberCount = 0; // readable outside the mailbox for /group list
+    private boolean removed = false;
+
+    // Digest delivery state
+    private final ScheduledExecutorService timer;
+    private final Set<ServerHandler> realtimeMembers = new HashSet<>();
+    private final List<DigestEntry> digest = new ArrayList<>();
+    private volatile boolean digestMode = false;
+    private boolean flushScheduled = false;
+    private long rateWindowStart = System.currentTimeMillis();
+    private int rateWindowCount = 0;
+
+    private record DigestEntry(String line, ServerHandler sender, TopicMatches matches) {
+    }
+
+    public GroupActor(String name, ChatGroup registry, Executor scheduler,
+                      ScheduledExecutorService timer, FanOut fanOut) {
+        this.fanOut = fanOut;
+        this.timer = timer;
+        this.name = name;
+        this.registry = registry;
+        this.mailbox = new SerialExecutor(scheduler);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getMemberCount() {
+        return memberCount;
+    }
+
+    public boolean isDigestMode() {
+        return digestMode;
+    }
+
+    /**
+     * @param restored true when putting a registering client back in its stored group, which is
+     *                 already journaled and answers no request
+     */
+    public void join(ServerHandler client, boolean restored) {
+        // The client's lane moves on to its next command, so capture which request this answers
+        long request = client.currentRequest();
+        // Point the client's chat here before its lane moves on: lines it sends next are posted to
+        // this mailbox after the join, instead of going to the old group or global chat meanwhile.
+        // It also comes before the closed check below, so a session that closes after that check
+        // sees this group and takes the client out again with depart.
+        String oldGroup = client.getCurrentGroup();
+        client.setCurrentGroup(name);
+        mailbox.execute(() -> {
+            if (removed) {
+                if (client.getCurrentGroup().equals(name)) {
+                    client.setCurrentGroup(oldGroup.equals(name) ? "" : oldGroup);
+                }
+                reply(client, request, Message.Status.NOT_FOUND, "Group '" + name + "' does not exist.");
+                return;
+            }
+            if (members.contains(client)) {
+                if (!restored) {
+                    reply(client, request, Message.Status.CONFLICT, "You are already in group '" + name + "'.");
+                }
+                return;
+            }
+            if (client.isClosed()) {
+                registry.departQuietly(oldGroup, client);
+                return;
+            }
+            members.add(client);
+            memberCount = members.size();
+            if (!restored) {
+                registry.memberJoined(this, client);
+            }
+            if (!oldGroup.isEmpty() && !oldGroup.equals(name)) {
+                registry.leaveQuietly(oldGroup, client);
+            }
+
+            // Announce to group - DON'T filter system announcements
+            String announcement = "User " + client.getUsername() + " joined group '" + name + "'.";
+            announce(new Message(announcement, "Server"), client);
+            reply(client, request, Message.Status.OK, (restored ? "You are back in group '" : "You joined group '") + name + "'.");
+        });
+    }
+
+    /**
+     * @param notify false when leaving because the client joined another group
+     */
+    public void leave(ServerHandler client, boolean notify) {
+        // The client's lane moves on to its next command, so capture which request this answers
+        long request = client.currentRequest();
+        // Chat sent after /group leave goes to global chat straight away, not to this group
+        if (notify && client.getCurrentGroup().equals(name)) {
+            client.setCurrentGroup("");
+        }
+        mailbox.execute(() -> {
+            if (removed) {
+                if (notify) {
+                    reply(client, request, Message.Status.NOT_FOUND, "Group '" + name + "' does not exist.");
+                }
+                return;
+            }
+            if (!members.remove(client)) {
+                if (notify) {
+                    reply(client, request, Message.Status.CONFLICT, "You are not in group '" + name + "'.");
+                }
+                return;
+            }
+            realtimeMembers.remove(client);
+            memberCount = members.size();
+            registry.memberLeft(this, client);
+
+            // Announce to group - DON'T filter system announcements
+            String announcement = "User " + client.getUsername() + " left group '" + name + "'.";
+            announce(new Message(announcement, "Server"), null);
+
+            // Remove empty groups
+            if (members.isEmpty()) {
+                removed = true;
+                registry.unregister(this);
+                if (notify) {
+                    reply(client, request, Message.Status.OK, "You left group '" + name + "'. Group was removed as it is now empty.");
+                }
+                return;
+            }
+            if (notify) {
+                reply(client, request, Message.Status.OK, "You left group '" + name + "'.");
+            }
+        });
+    }
+
+    /**
+     * Takes out a member whose session has ended. Nothing is answered or stored: the user keeps
+     * the membership and is put back in the group when they register again, so an emptied
+     * group stays until it is removed, like groups after a restart.
+     */
+    public void depart(ServerHandler client) {
+        mailbox.execute(() -> {
+            if (removed || !members.remove(client)) {
+                return;
+            }
+            realtimeMembers.remove(client);
+            memberCount = members.size();
+            String announcement = "User " + client.getUsername() + " left group '" + name + "'.";
+            announce(new Message(announcement, "Server"), null);
+        });
+    }
+
+    public void remove(ServerHandler client) {
+        // The client's lane moves on to its next command, so capture which request this answers
+        long request = client.currentRequest();
+        mailbox.execute(() -> {
+            if (removed) {
+                reply(client, request, Message.Status.NOT_FOUND, "Group '" + name + "' does not exist.");
+                return;
+            }
+            // Announce to all group members before removing
+            String announcement = "Group '" + name + "' has been removed by " + client.getUsername() + ".";
+            announce(new Message(announcement, "Server"), null);
+
+            // Reset currentGroup for all members
+            for (ServerHandler member : members) {
+                if (member.getCurrentGroup().equals(name)) {
+                    member.setCurrentGroup("");
+                }
+            }
+            members.clear();
+            realtimeMembers.clear();
+            digest.clear();
+            memberCount = 0;
+            removed = true;
+            registry.unregister(this);
+            reply(client, request, Message.Status.OK, "Group '" + name + "' was removed.");
+        });
+    }
+
+    public void send(Message msg, ServerHandler sender, TopicMatches matches) {
+        mailbox.execute(() -> {
+            if (removed) {
+                if (sender != null) {
+                    tell(sender, "Group '" + name + "' does not exist.");
+                }
+                matches.deliverRemaining(msg, sender, subscriber -> false);
+                return;
+            }
+
+            // Chat text was filtered when it was relayed; server messages are never filtered
+            boolean isServerMessage = "Server".equals(msg.getUser());
+            String body = msg.getMessageBody();
+            if (!isServerMessage) {
+                rateWindowCount++;
+                updateDeliveryMode();
+            }
+
+            // One frame shared by every member; don't send back to the sender.
+            // Subscribers outside the group get a single topic frame instead.
+            Message frame = new Message("GROUP [" + name + "] | " + msg.getUser() + ": " + body, "");
+            matches.deliverRemaining(msg, sender, members::contains);
+            if (!digestMode || isServerMessage) {
+                fanOut.deliver(new ArrayList<>(members), frame, sender, matches);
+                return;
+            }
+            // Digest mode: only members who opted in get it now, everyone else gets it in the next digest
+            fanOut.deliver(new ArrayList<>(realtimeMembers), frame, sender, matches);
+            digest.add(new DigestEntry(msg.getUser() + ": " + body, sender, matches));
+        });
+    }
+
+    /**
+     * Opts a member in or out of real-time delivery while the group is in digest mode
+     */
+    public void setRealtime(ServerHandler client, boolean realtime) {
+        // The client's lane moves on to its next command, so capture which request this answers
+        long request = client.currentRequest();
+        mailbox.execute(() -> {
+            if (removed || !members.contains(client)) {
+                reply(client, request, Message.Status.CONFLICT, "You are not in group '" + name + "'.");
+                return;
+            }
+            if (realtime) {
+                realtimeMembers.add(client);
+                reply(client, request, Message.Status.OK, "You will receive every message from group '" + name + "' as it is sent.");
+            } else {
+                realtimeMembers.remove(client);
+                reply(client, request, Message.Status.OK, "You will receive group '" + name + "' in digests while it is busy.");
+            }
+        });
+    }
+
+    /**
+     * Gives each member except the sender its own download token for the file
+     */
+    public void offerFile(FileTransfers.SpooledFile file, ServerHandler sender, FileTransfers transfers) {
+        mailbox.execute(() -> {
+            int offered = 0;
+            if (!removed) {
+                for (ServerHandler member : members) {
+                    if (member == sender) {
+                        continue;
+                    }
+                    String token = transfers.addDownload(file);
+                    member.sendMessageToClient(Message.file("OFFER " + token + " " + file.getSize() + " " + file.getName(),
+                            file.getSender()));
+                    offered++;
+                }
+            }
+            transfers.offered(file);
+            tell(sender, "File " + file.getName() + " sent to group '" + name + "' (" + offered + " members).");
+        });
+    }
+
+    /**
+     * Measures the message rate over one-second windows and switches digest mode on when the
+     * group is both large and busy, and off again once traffic drops to half the threshold
+     */
+    private void updateDeliveryMode() {
+        long now = System.currentTimeMillis();
+        long elapsed = now - rateWindowStart;
+        if (elapsed < 1000) {
+            return;
+        }
+        double rate = rateWindowCount * 1000.0 / elapsed;
+        rateWindowStart = now;
+        rateWindowCount = 0;
+
+        boolean large = members.size() >= ServerConfig.DIGEST_MIN_MEMBERS;
+        if (!digestMode && large && rate >= ServerConfig.DIGEST_MIN_RATE) {
+            digestMode = true;
+            scheduleFlush();
+            announce(new Message("This group is busy, messages are now delivered as digests every "
+                    + ServerConfig.DIGEST_WINDOW_MS + " ms. Use /group realtime " + name + " on to get every message.", "Server"), null);
+        } else if (digestMode && (!large || rate < ServerConfig.DIGEST_MIN_RATE / 2.0)) {
+            digestMode = false;
+            flushDigest();
+            announce(new Message("Traffic has calmed down, messages are delivered as they are sent again.", "Server"), null);
+        }
+    }
+
+    private void scheduleFlush() {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            timer.schedule(() -> mailbox.execute(this::digestWindowEnded), ServerConfig.DIGEST_WINDOW_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Flush timer: sends the window's digest and checks the message rate, which may have dropped
+     * because nobody is posting, then keeps the timer going while the group stays in digest mode
+     */
+    private void digestWindowEnded() {
+        flushScheduled = false;
+        if (removed || !digestMode) {
+            return;
+        }
+        flushDigest();
+        updateDeliveryMode();
+        if (digestMode) {
+            scheduleFlush();
+        }
+    }
+
+    private void flushDigest() {
+        if (digest.isEmpty()) {
+            return;
+        }
+        List<DigestEntry> entries = new ArrayList<>(digest);
+        digest.clear();
+
+        // Real-time members already have these messages. Senders and topic subscribers each get
+        // their own digest; everyone else shares one frame.
+        Set<ServerHandler> recipients = new LinkedHashSet<>(members);
+        recipients.removeAll(realtimeMembers);
+        Set<ServerHandler> individual = new HashSet<>();
+        for (DigestEntry entry : entries) {
+            if (entry.sender() != null) {
+                individual.add(entry.sender());
+            }
+            individual.addAll(entry.matches().subscribers());
+        }
+        individual.retainAll(recipients);
+        recipients.removeAll(individual);
+        if (!recipients.isEmpty()) {
+            fanOut.deliver(new ArrayList<>(recipients), digestFor(null, entries), null);
+        }
+        for (ServerHandler recipient : individual) {
+            Message frame = digestFor(recipient, entries);
+            if (frame != null) {
+                fanOut.deliver(List.of(recipient), frame, null);
+            }
+        }
+    }
+
+    /**
+     * Builds one recipient's digest without their own lines, tagged with the topics the others matched for them
+     * @param recipient Null for the digest shared by members who sent nothing and matched no topics
+     * @return The digest, or null if every line in it was the recipient's own
+     */
+    private Message digestFor(ServerHandler recipient, List<DigestEntry> entries) {
+        StringBuilder lines = new StringBuilder();
+        Set<String> topics = new LinkedHashSet<>();
+        int count = 0;
+        for (DigestEntry entry : entries) {
+            if (recipient != null && entry.sender() == recipient) {
+                continue;
+            }
+            lines.append('\n').append(entry.line());
+            count++;
+            List<String> matched = recipient == null ? null : entry.matches().topicsOf(recipient);
+            if (matched != null) {
+                topics.addAll(matched);
+            }
+        }
+        if (count == 0) {
+            return null;
+        }
+        Message frame = new Message("GROUP [" + name + "] DIGEST (" + count + " messages)" + lines, "");
+        return topics.isEmpty() ? frame : frame.withTopics(new ArrayList<>(topics));
+    }
+
+    private void announce(Message msg, ServerHandler exclude) {
+        Message frame = new Message("GROUP [" + name + "] | " + msg.getUser() + ": " + msg.getMessageBody(), "");
+        fanOut.deliver(new ArrayList<>(members), frame, exclude);
+    }
+
+    private static void reply(ServerHandler client, long request, Message.Status status, String text) {
+        client.reply(request, Message.reply(status, text));
+    }
+
+    private static void tell(ServerHandler client, String text) {
+        client.sendMessageToClient(new Message(text, "Server"));
+    }
+}
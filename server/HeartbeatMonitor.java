@@ -0,0 +1,74 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Finds half-open and idle connections. Every connection has one deadline in a timing wheel,
+ * so checking thousands of them costs one timer thread and a slot walk per second.
+ *
+ * When a connection's deadline comes up:
+ * - heard from within PING_INTERVAL_MS: check again once that interval has passed
+ * - quiet for PING_INTERVAL_MS: send a PING and check again after PONG_TIMEOUT_MS
+ * - still quiet after that, or no commands or chat for IDLE_TIMEOUT_MS: reap it
+ * Any frame from the client counts as a sign of life, so busy connections are never pinged.
+ * Everything due in the same tick is reaped together.
+ */
+public class HeartbeatMonitor {
+    private final TimingWheel<ClientConnection> deadlines = new TimingWheel<>(1000, 512, this::check);
+
+    public HeartbeatMonitor() {
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        deadlines.start(timer);
+    }
+
+    /**
+     * Starts watching a new connection. Closed connections drop out the next time they come up.
+     */
+    public void track(ClientConnection connection) {
+        deadlines.schedule(connection, ServerConfig.PING_INTERVAL_MS);
+    }
+
+    private void check(List<ClientConnection> due) {
+        long now = System.currentTimeMillis();
+        List<ClientConnection> unresponsive = new ArrayList<>();
+        List<ClientConnection> idle = new ArrayList<>();
+        for (ClientConnection connection : due) {
+            if (!connection.isOpen()) {
+                continue;
+            }
+            long quietFor = now - connection.getLastHeard();
+            if (ServerConfig.IDLE_TIMEOUT_MS > 0 && now - connection.getLastActive() >= ServerConfig.IDLE_TIMEOUT_MS) {
+                idle.add(connection);
+            } else if (quietFor >= ServerConfig.PING_INTERVAL_MS + ServerConfig.PONG_TIMEOUT_MS) {
+                unresponsive.add(connection);
+            } else if (quietFor >= ServerConfig.PING_INTERVAL_MS) {
+                connection.ping();
+                deadlines.schedule(connection, ServerConfig.PING_INTERVAL_MS + ServerConfig.PONG_TIMEOUT_MS - quietFor);
+            } else {
+                deadlines.schedule(connection, ServerConfig.PING_INTERVAL_MS - quietFor);
+            }
+        }
+        if (unresponsive.isEmpty() && idle.isEmpty()) {
+            return;
+        }
+        for (ClientConnection connection : unresponsive) {
+            connection.reap(null);
+        }
+        for (ClientConnection connection : idle) {
+            connection.reap("Disconnected after " + describe(ServerConfig.IDLE_TIMEOUT_MS) + " of inactivity.");
+        }
+        ServerStats.recordSessionsReaped(unresponsive.size(), idle.size());
+        System.out.println("Reaped " + unresponsive.size() + " unresponsive and " + idle.size() + " idle sessions");
+    }
+
+    private static String describe(long ms) {
+        return ms >= 60_000 ? ms / 60_000 + " minutes" : ms / 1000 + " seconds";
+    }
+}
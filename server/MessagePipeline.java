@@ -0,0 +1,69 @@
+package server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decouples socket readers from moderation and routing. Each connection's reader thread only
+ * decodes frames and hands them to its lane; a pool sized to the CPU cores filters, routes and
+ * writes them. A lane runs its client's messages one at a time in arrival order, so per-sender
+ * ordering holds. Lanes hand chat on to one sequencer per conversation, each group's mailbox or
+ * the pool's global chat, so every recipient of a conversation sees its messages in one order.
+ * A bounded number of queued messages is shared by all readers, and each tenant may hold only
+ * its quota of them: when moderation falls behind, readers block, stop reading their sockets,
+ * and TCP pushes the backpressure out to the clients.
+ */
+public class MessagePipeline {
+    private final ExecutorService workers;
+    private final Semaphore capacity;
+
+    public MessagePipeline() {
+        this(ServerConfig.PIPELINE_THREADS, ServerConfig.PIPELINE_QUEUE);
+    }
+
+    public MessagePipeline(int threads, int queueCapacity) {
+        AtomicInteger counter = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "pipeline-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.capacity = new Semaphore(queueCapacity);
+    }
+
+    /**
+     * Creates the ordered lane for one client's messages
+     * @param quota Share of the pipeline this client's tenant may hold, so a busy tenant blocks
+     *              its own readers before it can fill the pipeline for everyone else
+     */
+    public Lane newLane(Semaphore quota) {
+        return new Lane(quota);
+    }
+
+    public class Lane {
+        private final SerialExecutor executor = new SerialExecutor(workers);
+        private final Semaphore quota;
+
+        private Lane(Semaphore quota) {
+            this.quota = quota;
+        }
+
+        /**
+         * Queues a message for processing, blocking while the tenant's share or the pipeline is full
+         */
+        public void submit(Runnable task) {
+            quota.acquireUninterruptibly();
+            capacity.acquireUninterruptibly();
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    capacity.release();
+                    quota.release();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,444 @@
+package server;
+
+import java.security.SecureRandom;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import shared.Message;
+import shared.SwearFilter;
+
+/**
+ * Messages sent at a set time, such as a group announcement at 07:00 or a reminder in 30 minutes.
+ * Pending messages wait in a hierarchical timing wheel with one second ticks and are kept in the
+ * StateStore, so they survive a restart. Everything due in a tick is handed over as one batch and
+ * sent in order on the shared group workers, through the same ChatGroup and ConnectionPool
+ * routing as live chat, so the timer thread never does the sending itself.
+ *
+ * A scheduled message is sent in the name it was made under whether or not its owner is still
+ * connected, but names can be taken by someone else once their owner leaves, so ownership is a
+ * random schedule key given to the session instead. Only sessions holding the key can list or
+ * cancel the message, and it is not sent while someone without the key has the name. Each
+ * owner's messages go out no faster than the SEND rate limit allows live chat, and through the
+ * flood detector like any other line.
+ */
+public class MessageScheduler {
+    private static final SwearFilter swearFilter = new SwearFilter();
+    private static final SecureRandom keySource = new SecureRandom();
+    private static final Pattern KEY = Pattern.compile("[0-9a-f]{32}");
+    private static final Pattern DURATION = Pattern.compile("(?:\\d{1,9}[dhms])+");
+    private static final Pattern DURATION_PART = Pattern.compile("(\\d+)([dhms])");
+    private static final DateTimeFormatter WHEN = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final DateTimeFormatter TIME_OF_DAY = DateTimeFormatter.ofPattern("H:mm");
+    private static final String USAGE = "Usage: /schedule <in <duration>|at <time>> <group <name>|user <name>|all> <message>,"
+            + " /schedule list, /schedule cancel <id> or /schedule claim <key>. Durations look like 30m or 1h30m,"
+            + " times like 07:00 or 2026-12-24T18:00.";
+    private static final int LIST_LIMIT = 50;
+    private static final int PREVIEW_CHARS = 60;
+    private static final int DELIVERY_BATCH = 1000; // messages per task, so a huge tick doesn't hold one worker
+
+    private final ConnectionPool pool;
+    private final ChatGroup chatGroup;
+    private final StateStore store;
+    private final FloodDetector floodDetector;
+    private final Executor deliveries; // one tick's batch after another, never two at once
+    private final TimingWheel<ScheduledMessage> wheel = new TimingWheel<>(1000, 256, this::due);
+    private final int cap;
+    // Guarded by this
+    private final Map<Long, TimingWheel.Timeout<ScheduledMessage>> pending = new HashMap<>();
+    private final Map<String, Set<Long>> idsByOwner = new HashMap<>(); // keyed by ownerId
+    private long lastId;
+    // Deliveries only: how many more messages each owner may send right now, keyed by ownerId
+    private final Map<String, TokenBucket> allowances = new HashMap<>();
+
+    /**
+     * @param workers Threads that send due messages, may be shared with other registries
+     * @param timer Advances the wheel, may be shared with other registries
+     * @param cap Messages that may be pending at once; scheduling more is refused
+     */
+    public MessageScheduler(ConnectionPool pool, ChatGroup chatGroup, StateStore store, FloodDetector floodDetector,
+                            Executor workers, ScheduledExecutorService timer, int cap) {
+        this.pool = pool;
+        this.chatGroup = chatGroup;
+        this.store = store;
+        this.floodDetector = floodDetector;
+        this.deliveries = new SerialExecutor(workers);
+        this.cap = cap;
+        this.lastId = store.lastScheduleId();
+        // Anything that fell due while the server was down goes out on the first tick, unless it is too stale to matter
+        long oldest = System.currentTimeMillis() - ServerConfig.SCHEDULE_GRACE_MS;
+        List<Long> missed = new ArrayList<>();
+        synchronized (this) {
+            for (ScheduledMessage message : store.schedules()) {
+                if (message.dueAt() < oldest) {
+                    missed.add(message.id());
+                } else {
+                    track(message);
+                }
+            }
+        }
+        if (!missed.isEmpty()) {
+            store.unscheduled(missed);
+            ServerStats.recordScheduledMissed(missed.size());
+            System.out.println("Dropped " + missed.size() + " scheduled messages that fell due while the server was down");
+        }
+        wheel.start(timer);
+    }
+
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    public synchronized Message processScheduleCommand(String subCommand, String args, ServerHandler client) {
+        switch (subCommand) {
+            case "in" -> {
+                String[] words = args.split("\\s+", 2);
+                Long delay = parseDuration(words[0]);
+                if (delay == null || words.length < 2) {
+                    return Message.reply(Message.Status.INVALID, USAGE);
+                }
+                if (delay > ServerConfig.SCHEDULE_MAX_DELAY_MS) {
+                    return tooFarAhead();
+                }
+                return schedule(System.currentTimeMillis() + delay, words[1], client);
+            }
+            case "at" -> {
+                String[] words = args.split("\\s+", 2);
+                Long dueAt = parseTime(words[0]);
+                if (dueAt == null || words.length < 2) {
+                    return Message.reply(Message.Status.INVALID, USAGE);
+                }
+                if (dueAt < System.currentTimeMillis()) {
+                    return Message.reply(Message.Status.INVALID, "That time has already passed.");
+                }
+                return schedule(dueAt, words[1], client);
+            }
+            case "list" -> {
+                return Message.reply(Message.Status.OK, list(client.getScheduleKey()));
+            }
+            case "cancel" -> {
+                String id = args.startsWith("#") ? args.substring(1) : args;
+                try {
+                    return cancel(Long.parseLong(id), client.getScheduleKey());
+                } catch (NumberFormatException e) {
+                    return Message.reply(Message.Status.INVALID, "Please specify a schedule id: /schedule cancel <id>");
+                }
+            }
+            case "claim" -> {
+                String key = args.toLowerCase();
+                Set<Long> ids = KEY.matcher(key).matches() ? idsByOwner.get(key) : null;
+                if (ids == null) {
+                    return Message.reply(Message.Status.NOT_FOUND, "No scheduled messages for that key.");
+                }
+                client.setScheduleKey(key);
+                return Message.reply(Message.Status.OK, "You can manage your " + ids.size() + " scheduled messages again.");
+            }
+            default -> {
+                return Message.reply(Message.Status.INVALID, USAGE);
+            }
+        }
+    }
+
+    /**
+     * Schedules "group name text", "user name text" or "all text" from a client
+     */
+    private Message schedule(long dueAt, String rest, ServerHandler client) {
+        String[] words = rest.split("\\s+", 3);
+        ScheduledMessage.Kind kind;
+        String target = "";
+        String text;
+        switch (words[0].toLowerCase()) {
+            case "all" -> {
+                kind = ScheduledMessage.Kind.ALL;
+                text = rest.substring(words[0].length()).trim();
+            }
+            case "group", "user" -> {
+                if (words.length < 2) {
+                    return Message.reply(Message.Status.INVALID, USAGE);
+                }
+                kind = words[0].equalsIgnoreCase("group") ? ScheduledMessage.Kind.GROUP : ScheduledMessage.Kind.USER;
+                target = words[1];
+                text = words.length > 2 ? words[2].trim() : "";
+            }
+            default -> {
+                return Message.reply(Message.Status.INVALID, USAGE);
+            }
+        }
+        if (text.isEmpty()) {
+            return Message.reply(Message.Status.INVALID, "Please write the message to send: " + USAGE);
+        }
+        if (text.length() > ServerConfig.SCHEDULE_MAX_CHARS) {
+            return Message.reply(Message.Status.TOO_LARGE,
+                    "Scheduled messages are limited to " + ServerConfig.SCHEDULE_MAX_CHARS + " characters.");
+        }
+        long now = System.currentTimeMillis();
+        if (dueAt - now > ServerConfig.SCHEDULE_MAX_DELAY_MS) {
+            return tooFarAhead();
+        }
+        if (kind == ScheduledMessage.Kind.GROUP && !chatGroup.groupExists(target)) {
+            return Message.reply(Message.Status.NOT_FOUND, "Group " + target + " not found.");
+        }
+        String key = client.getScheduleKey();
+        boolean newKey = key == null;
+        if (newKey) {
+            byte[] bytes = new byte[16];
+            keySource.nextBytes(bytes);
+            key = HexFormat.of().formatHex(bytes);
+        }
+        Set<Long> own = idsByOwner.get(key);
+        if (own != null && own.size() >= ServerConfig.SCHEDULES_PER_USER) {
+            return Message.reply(Message.Status.UNAVAILABLE,
+                    "You already have " + own.size() + " scheduled messages. Cancel one first.");
+        }
+        if (pending.size() >= cap) {
+            return Message.reply(Message.Status.UNAVAILABLE, "Cannot schedule message: limit of " + cap + " reached.");
+        }
+
+        ScheduledMessage message = new ScheduledMessage(++lastId, dueAt, client.getUsername(), key, kind, target,
+                swearFilter.filter(text));
+        store.scheduled(message);
+        track(message);
+        String reply = "Scheduled #" + message.id() + " for " + format(message.dueAt()) + " to " + describeTarget(message) + ".";
+        if (newKey) {
+            client.setScheduleKey(key);
+            reply += " Your schedule key is " + key + ". Keep it: after reconnecting, send /schedule claim " + key
+                    + " to list or cancel your scheduled messages and to have them sent while you are online.";
+        }
+        return Message.reply(Message.Status.OK, reply);
+    }
+
+    private static Message tooFarAhead() {
+        return Message.reply(Message.Status.INVALID,
+                "Messages can be scheduled up to " + ServerConfig.SCHEDULE_MAX_DELAY_MS / (24 * 60 * 60 * 1000L) + " days ahead.");
+    }
+
+    /**
+     * @param key The session's schedule key, null if it has none
+     */
+    private String list(String key) {
+        Set<Long> ids = key == null ? null : idsByOwner.get(key);
+        if (ids == null) {
+            return "You have no scheduled messages.";
+        }
+        List<ScheduledMessage> messages = new ArrayList<>(ids.size());
+        for (long id : ids) {
+            messages.add(pending.get(id).getItem());
+        }
+        messages.sort(Comparator.comparingLong(ScheduledMessage::dueAt));
+        StringBuilder sb = new StringBuilder("Your scheduled messages (" + messages.size() + "):");
+        for (ScheduledMessage message : messages.subList(0, Math.min(LIST_LIMIT, messages.size()))) {
+            String text = message.text();
+            sb.append("\n#").append(message.id()).append(' ').append(format(message.dueAt())).append(" to ")
+                    .append(describeTarget(message)).append(": ")
+                    .append(text.length() > PREVIEW_CHARS ? text.substring(0, PREVIEW_CHARS) + "..." : text);
+        }
+        if (messages.size() > LIST_LIMIT) {
+            sb.append("\n... and ").append(messages.size() - LIST_LIMIT).append(" more");
+        }
+        return sb.toString();
+    }
+
+    private Message cancel(long id, String key) {
+        TimingWheel.Timeout<ScheduledMessage> timeout = pending.get(id);
+        // Someone else's schedules are as good as missing
+        if (timeout == null || !timeout.getItem().ownerKey().equals(key)) {
+            return Message.reply(Message.Status.NOT_FOUND, "No scheduled message #" + id + ".");
+        }
+        if (!wheel.cancel(timeout)) {
+            return Message.reply(Message.Status.CONFLICT, "Scheduled message #" + id + " is already being sent.");
+        }
+        forget(timeout.getItem());
+        store.unscheduled(List.of(id));
+        return Message.reply(Message.Status.OK, "Cancelled scheduled message #" + id + ".");
+    }
+
+    private void track(ScheduledMessage message) {
+        pending.put(message.id(), wheel.schedule(message, message.dueAt() - System.currentTimeMillis()));
+        idsByOwner.computeIfAbsent(ownerId(message), owner -> new HashSet<>()).add(message.id());
+    }
+
+    private void forget(ScheduledMessage message) {
+        pending.remove(message.id());
+        String owner = ownerId(message);
+        Set<Long> ids = idsByOwner.get(owner);
+        if (ids != null && ids.remove(message.id()) && ids.isEmpty()) {
+            idsByOwner.remove(owner);
+        }
+    }
+
+    /**
+     * Wheel callback on the timer thread: queues one tick's messages for sending
+     */
+    private void due(List<ScheduledMessage> batch) {
+        for (int start = 0; start < batch.size(); start += DELIVERY_BATCH) {
+            List<ScheduledMessage> part = batch.subList(start, Math.min(batch.size(), start + DELIVERY_BATCH));
+            deliveries.execute(() -> deliver(part));
+        }
+    }
+
+    /**
+     * Sends a batch of due messages. Each owner sends at most their SEND allowance; the rest of
+     * their messages wait for a later tick. The others are forgotten and journaled together, and
+     * recipients are looked up once for the whole batch.
+     */
+    private void deliver(List<ScheduledMessage> batch) {
+        List<ScheduledMessage> sending = new ArrayList<>(batch.size());
+        List<ScheduledMessage> held = new ArrayList<>();
+        for (ScheduledMessage message : batch) {
+            TokenBucket allowance = allowances.computeIfAbsent(ownerId(message), owner -> new TokenBucket(
+                    ServerConfig.rateFor(RateLimiter.CommandClass.SEND), ServerConfig.burstFor(RateLimiter.CommandClass.SEND)));
+            (allowance.tryAcquire() ? sending : held).add(message);
+        }
+        List<Long> ids = new ArrayList<>(sending.size());
+        synchronized (this) {
+            for (ScheduledMessage message : sending) {
+                forget(message);
+                ids.add(message.id());
+            }
+            for (ScheduledMessage message : held) {
+                pending.put(message.id(), wheel.schedule(message, 1000));
+            }
+            // An owner with nothing left pending starts with a full allowance next time
+            allowances.keySet().removeIf(owner -> !idsByOwner.containsKey(owner));
+        }
+        if (sending.isEmpty()) {
+            return;
+        }
+        store.unscheduled(ids);
+
+        Map<String, ServerHandler> online = onlineByName();
+        int sent = 0;
+        for (ScheduledMessage message : sending) {
+            ServerHandler nameHolder = online.get(message.owner().toLowerCase());
+            if (nameHolder != null && !message.ownerKey().equals(nameHolder.getScheduleKey())) {
+                // Whoever has the name now did not write this; sending it would put words in their mouth
+                ServerStats.recordScheduledMissed(1);
+                nameHolder.sendMessageToClient(new Message("Scheduled message #" + message.id() + " made under the name "
+                        + message.owner() + " was not sent: claim your schedule key with /schedule claim <key> to have"
+                        + " your messages sent while you are online.", "Server"));
+                continue;
+            }
+            String problem;
+            if (floodDetector.isFlood(message.text())) {
+                problem = "the same text is being flooded.";
+            } else if (route(message, online)) {
+                sent++;
+                continue;
+            } else {
+                problem = describeTarget(message)
+                        + (message.kind() == ScheduledMessage.Kind.GROUP ? " no longer exists." : " is not online.");
+            }
+            // Not delivered: tell the owner if they are around
+            if (nameHolder != null) {
+                nameHolder.sendMessageToClient(new Message("Scheduled message #" + message.id() + " not delivered: " + problem, "Server"));
+            }
+        }
+        ServerStats.recordScheduledSent(sent);
+    }
+
+    /**
+     * Sends a due message through the same routing as live chat
+     * @return false if its group no longer exists or its recipient is not online
+     */
+    private boolean route(ScheduledMessage message, Map<String, ServerHandler> online) {
+        switch (message.kind()) {
+            case GROUP -> {
+                if (!chatGroup.groupExists(message.target())) {
+                    return false;
+                }
+                chatGroup.sendToGroup(message.target(), new Message(message.text(), message.owner()), null);
+            }
+            case ALL -> pool.broadcast(new Message(message.text(), message.owner()), null);
+            case USER -> {
+                ServerHandler recipient = online.get(message.target().toLowerCase());
+                if (recipient == null) {
+                    return false;
+                }
+                recipient.sendMessageToClient(new Message("PRIVATE MESSAGE | " + message.owner() + ": " + message.text(), ""));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Who a message belongs to: its owner key, or for messages stored before keys the owner's name,
+     * which never looks like a key so no session can claim them
+     */
+    private static String ownerId(ScheduledMessage message) {
+        return message.ownerKey().isEmpty() ? "name:" + message.owner().toLowerCase() : message.ownerKey();
+    }
+
+    private Map<String, ServerHandler> onlineByName() {
+        Map<String, ServerHandler> online = new HashMap<>();
+        for (ServerHandler client : pool.snapshotClients()) {
+            online.put(client.getUsername().toLowerCase(), client);
+        }
+        return online;
+    }
+
+    private static String describeTarget(ScheduledMessage message) {
+        return switch (message.kind()) {
+            case GROUP -> "group " + message.target();
+            case USER -> "user " + message.target();
+            case ALL -> "everyone";
+        };
+    }
+
+    private static String format(long epochMs) {
+        return WHEN.format(Instant.ofEpochMilli(epochMs).atZone(ZoneId.systemDefault()));
+    }
+
+    /**
+     * Parses durations such as 45s, 30m, 2h or 1d12h
+     * @return Milliseconds, or null if it isn't a duration
+     */
+    static Long parseDuration(String text) {
+        String lower = text.toLowerCase();
+        if (!DURATION.matcher(lower).matches()) {
+            return null;
+        }
+        long ms = 0;
+        Matcher part = DURATION_PART.matcher(lower);
+        try {
+            while (part.find()) {
+                long unit = switch (part.group(2)) {
+                    case "d" -> 24 * 60 * 60 * 1000L;
+                    case "h" -> 60 * 60 * 1000L;
+                    case "m" -> 60 * 1000L;
+                    default -> 1000L;
+                };
+                ms = Math.addExact(ms, Math.multiplyExact(Long.parseLong(part.group(1)), unit));
+            }
+        } catch (ArithmeticException e) {
+            return null; // "1h" repeated until it overflows is no duration either
+        }
+        return ms;
+    }
+
+    /**
+     * Parses a time of day such as 7:00 or 18:30, meaning the next time the server's clock shows it, or a
+     * date and time such as 2026-12-24T18:00, in the server's time zone
+     * @return Epoch milliseconds, or null if it isn't a time
+     */
+    static Long parseTime(String text) {
+        ZoneId zone = ZoneId.systemDefault();
+        try {
+            if (text.contains("T") || text.contains("t")) {
+                return LocalDateTime.parse(text.toUpperCase()).atZone(zone).toInstant().toEpochMilli();
+            }
+            ZonedDateTime now = ZonedDateTime.now(zone);
+            ZonedDateTime next = now.with(LocalTime.parse(text, TIME_OF_DAY));
+            return (next.isAfter(now) ? next : next.plusDays(1)).toInstant().toEpochMilli();
+        } catch (DateTimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import shared.Message;
+
+/**
+ * Frames waiting to be written to one client, in two lanes. Control frames (registration
+ * replies, command responses, errors) have strict priority over chat fan-out, so a client's
+ * replies never queue behind a flood of group traffic. To stop chat from starving, one chat
+ * frame is let through after every CONTROL_BURST control frames while chat is waiting.
+ * The chat lane is bounded: when a client can't keep up, its oldest chat frames are dropped.
+ */
+public class OutboundQueue {
+    private static final int CONTROL_BURST = 8;
+
+    private final ArrayDeque<Message> control = new ArrayDeque<>();
+    private final ArrayDeque<Message> chat = new ArrayDeque<>();
+    private final int chatCapacity;
+    private int controlStreak = 0;
+    private boolean closed = false;
+
+    public OutboundQueue(int chatCapacity) {
+        this.chatCapacity = chatCapacity;
+    }
+
+    /**
+     * Queues a frame for the writer
+     * @return false if the queue has been closed
+     */
+    public synchronized boolean offer(Message frame, boolean isControl) {
+        if (closed) {
+            return false;
+        }
+        if (isControl) {
+            control.addLast(frame);
+        } else {
+            if (chat.size() >= chatCapacity) {
+                chat.removeFirst();
+                ServerStats.recordOutboundDropped();
+            }
+            chat.addLast(frame);
+        }
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Gets the next frame to write without waiting
+     * @return The frame, or null if both lanes are empty
+     */
+    public synchronized Message poll() {
+        boolean chatsTurn = controlStreak >= CONTROL_BURST && !chat.isEmpty();
+        if (!control.isEmpty() && !chatsTurn) {
+            controlStreak++;
+            return control.removeFirst();
+        }
+        controlStreak = 0;
+        return chat.pollFirst();
+    }
+
+    /**
+     * Waits for the next frame to write
+     * @return The frame, or null once the queue is closed and everything has been written
+     */
+    public synchronized Message take() throws InterruptedException {
+        while (control.isEmpty() && chat.isEmpty()) {
+            if (closed) {
+                return null;
+            }
+            wait();
+        }
+        return poll();
+    }
+
+    /**
+     * Stops accepting frames; the writer finishes what is queued and then stops
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Closes the queue and hands back everything that was never written, in priority order
+     */
+    public synchronized List<Message> drainAll() {
+        closed = true;
+        List<Message> unsent = new ArrayList<>(control);
+        unsent.addAll(chat);
+        control.clear();
+        chat.clear();
+        return unsent;
+    }
+}
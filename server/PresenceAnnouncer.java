@@ -0,0 +1,125 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import shared.Message;
+
+/**
+ * Coalesces "joined/left the chat" announcements. Instead of one message per event to every
+ * client, events are collected over a short window and each client gets a single summary
+ * such as "A, B and 312 others joined the chat." The window grows while churn is high
+ * (e.g. everyone reconnecting after a restart) and shrinks back when it is quiet.
+ */
+public class PresenceAnnouncer {
+    private static final int NAMES_SHOWN = 3;
+
+    private final ConnectionPool pool;
+    private final ScheduledExecutorService timer;
+    private final Set<String> joined = new LinkedHashSet<>();
+    private final Set<String> left = new LinkedHashSet<>();
+    private long windowMs = ServerConfig.PRESENCE_WINDOW_MIN_MS;
+    private int eventsInWindow = 0;
+    private boolean flushScheduled = false;
+
+    /**
+     * @param timer Runs the flushes, may be shared with other pools' announcers
+     */
+    public PresenceAnnouncer(ConnectionPool pool, ScheduledExecutorService timer) {
+        this.pool = pool;
+        this.timer = timer;
+    }
+
+    public synchronized void userJoined(String username) {
+        // Leaving and rejoining inside one window cancels out
+        if (!left.remove(username)) {
+            joined.add(username);
+        }
+        recordEvent();
+    }
+
+    public synchronized void userLeft(String username) {
+        // Joining and leaving inside one window cancels out
+        if (!joined.remove(username)) {
+            left.add(username);
+        }
+        recordEvent();
+    }
+
+    private void recordEvent() {
+        eventsInWindow++;
+        if (!flushScheduled) {
+            flushScheduled = true;
+            timer.schedule(this::flush, windowMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flush() {
+        List<String> joinedNow;
+        List<String> leftNow;
+        synchronized (this) {
+            joinedNow = new ArrayList<>(joined);
+            leftNow = new ArrayList<>(left);
+            joined.clear();
+            left.clear();
+            adaptWindow();
+            flushScheduled = false;
+        }
+        if (joinedNow.isEmpty() && leftNow.isEmpty()) {
+            return;
+        }
+
+        String joinText = joinedNow.isEmpty() ? "" : summarise(joinedNow) + " joined the chat.";
+        String leftText = leftNow.isEmpty() ? "" : summarise(leftNow) + " left the chat.";
+        // Clients who joined in this window don't need to be told about themselves or the other newcomers
+        Message forExisting = new Message((joinText + " " + leftText).trim(), "Server");
+        Message forNewcomers = leftText.isEmpty() ? null : new Message(leftText, "Server");
+
+        Set<String> newcomers = new LinkedHashSet<>(joinedNow);
+        for (ServerHandler client : pool.snapshotClients()) {
+            if (!newcomers.contains(client.getUsername())) {
+                client.sendMessageToClient(forExisting);
+            } else if (forNewcomers != null) {
+                client.sendMessageToClient(forNewcomers);
+            }
+        }
+    }
+
+    private void adaptWindow() {
+        if (eventsInWindow >= ServerConfig.PRESENCE_CHURN_HIGH) {
+            windowMs = Math.min(windowMs * 2, ServerConfig.PRESENCE_WINDOW_MAX_MS);
+        } else if (eventsInWindow <= ServerConfig.PRESENCE_CHURN_LOW) {
+            windowMs = Math.max(windowMs / 2, ServerConfig.PRESENCE_WINDOW_MIN_MS);
+        }
+        eventsInWindow = 0;
+    }
+
+    /**
+     * Formats "A", "A and B", "A, B and C" or "A, B, C and 312 others"
+     */
+    private static String summarise(List<String> names) {
+        if (names.size() == 1) {
+            return "User " + names.get(0);
+        }
+        StringBuilder sb = new StringBuilder("Users ");
+        int shown = names.size() <= NAMES_SHOWN + 1 ? names.size() - 1 : NAMES_SHOWN;
+        Iterator<String> it = names.iterator();
+        for (int i = 0; i < shown; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(it.next());
+        }
+        int remaining = names.size() - shown;
+        if (remaining == 1) {
+            sb.append(" and ").append(it.next());
+        } else {
+            sb.append(" and ").append(remaining).append(" others");
+        }
+        return sb.toString();
+    }
+}
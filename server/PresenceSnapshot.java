@@ -0,0 +1,43 @@
+package server;
+
+import java.util.Arrays;
+
+/**
+ * Immutable, sorted view of the online usernames at one presence version.
+ * Rebuilt only when the pool changes, then shared by every /user list request.
+ */
+public class PresenceSnapshot {
+    private final long version;
+    private final String[] usernames; // sorted case-insensitively
+
+    public PresenceSnapshot(long version, String[] usernames) {
+        this.version = version;
+        this.usernames = usernames;
+        Arrays.sort(this.usernames, String.CASE_INSENSITIVE_ORDER);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int size() {
+        return usernames.length;
+    }
+
+    /**
+     * Index of the first username sorting after the cursor, so paging keeps working
+     * when users come and go between pages
+     * @param after Last username of the previous page, or null for the first page
+     */
+    public int indexAfter(String after) {
+        if (after == null || after.isEmpty()) {
+            return 0;
+        }
+        int idx = Arrays.binarySearch(usernames, after, String.CASE_INSENSITIVE_ORDER);
+        return idx >= 0 ? idx + 1 : -idx - 1;
+    }
+
+    public String get(int index) {
+        return usernames[index];
+    }
+}
@@ -0,0 +1,63 @@
+package server;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Per-connection flood protection. Each command class has its own token bucket, so a client
+ * spamming /group commands can still chat. Rejections draw from a separate penalty bucket:
+ * a client that keeps hammering after being throttled runs it dry and is disconnected.
+ */
+public class RateLimiter {
+    public enum CommandClass {
+        CHAT, SEND, GROUP, TOPIC, REGISTER
+    }
+
+    public enum Verdict {
+        ALLOW,      // process the message
+        WARN,       // drop it and tell the client to slow down
+        DROP,       // drop it silently, the client was already warned
+        DISCONNECT  // client kept flooding, close the connection
+    }
+
+    private final Map<CommandClass, TokenBucket> buckets = new EnumMap<>(CommandClass.class);
+    private final TokenBucket penalty;
+    private final TokenBucket warnings = new TokenBucket(1, 1); // at most one warning a second
+
+    public RateLimiter() {
+        for (CommandClass commandClass : CommandClass.values()) {
+            buckets.put(commandClass, new TokenBucket(ServerConfig.rateFor(commandClass), ServerConfig.burstFor(commandClass)));
+        }
+        penalty = new TokenBucket(ServerConfig.FLOOD_STRIKES_PER_SECOND, ServerConfig.FLOOD_STRIKES);
+    }
+
+    /**
+     * Works out which bucket a message body draws from
+     * @return The command class, or null for commands that are never limited (/exit)
+     */
+    public static CommandClass classify(String body) {
+        if (!body.startsWith("/") && !body.startsWith("REGISTER ")) {
+            return CommandClass.CHAT;
+        }
+        String command = body.split("\\s+", 2)[0].toLowerCase();
+        return switch (command) {
+            case "/exit" -> null;
+            case "/send", "/schedule" -> CommandClass.SEND;
+            case "/group", "/create", "/join", "/leave", "/remove" -> CommandClass.GROUP;
+            case "/topic", "/topics" -> CommandClass.TOPIC;
+            case "register", "/register", "/unregister", "/operator" -> CommandClass.REGISTER;
+            default -> CommandClass.CHAT;
+        };
+    }
+
+    public Verdict check(CommandClass commandClass) {
+        if (commandClass == null || buckets.get(commandClass).tryAcquire()) {
+            return Verdict.ALLOW;
+        }
+        ServerStats.recordRateLimited(commandClass);
+        if (!penalty.tryAcquire()) {
+            return Verdict.DISCONNECT;
+        }
+        return warnings.tryAcquire() ? Verdict.WARN : Verdict.DROP;
+    }
+}
@@ -0,0 +1,16 @@
+package server;
+
+/**
+ * A message waiting to be sent at a set time
+ * @param id Tenant-wide id, used to cancel it
+ * @param dueAt Wall clock time to send it, epoch milliseconds
+ * @param owner Who scheduled it; it is sent in their name
+ * @param ownerKey Schedule key of the session that made it; only sessions holding the key can list
+ *                 or cancel it. Empty for messages stored before keys, which nobody can manage.
+ * @param target Group or user name, empty for everyone
+ */
+public record ScheduledMessage(long id, long dueAt, String owner, String ownerKey, Kind kind, String target, String text) {
+    public enum Kind {
+        GROUP, USER, ALL
+    }
+}
@@ -0,0 +1,58 @@
+package server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs tasks one at a time, in submission order, on a shared thread pool. Many of these can
+ * share a few threads, and one is never running on two threads at once. Producers just add to
+ * a lock-free queue; whoever finds the executor idle schedules a drain.
+ */
+public class SerialExecutor implements Executor {
+    // Tasks run per drain before giving the thread back, so one busy queue can't hog a worker
+    private static final int BATCH = 32;
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final Executor workers;
+
+    public SerialExecutor(Executor workers) {
+        this.workers = workers;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            workers.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        try {
+            for (int i = 0; i < BATCH; i++) {
+                Runnable task = tasks.poll();
+                if (task == null) {
+                    break;
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Task failed: " + e);
+                }
+            }
+        } finally {
+            scheduled.set(false);
+            // Something may have been added after our last poll
+            if (!tasks.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package server;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Server tunables. Every value can be overridden at start-up with a system property,
+ * e.g. java -Dchat.deliveryWindow=512 -cp out/production/Hotel_Sockets server.StartChatServer
+ */
+public final class ServerConfig {
+    // Max frames kept per connection until the client acknowledges them
+    public static final int DELIVERY_WINDOW = Integer.getInteger("chat.deliveryWindow", 256);
+    // Max dropped connections whose unacked frames are kept for the client to resume
+    public static final int DETACHED_SESSIONS = Integer.getInteger("chat.detachedSessions", 1024);
+    // Join/leave announcements are batched over a window that adapts to the churn rate
+    public static final long PRESENCE_WINDOW_MIN_MS = Long.getLong("chat.presenceWindowMinMs", 100);
+    public static final long PRESENCE_WINDOW_MAX_MS = Long.getLong("chat.presenceWindowMaxMs", 2000);
+    public static final int PRESENCE_CHURN_HIGH = Integer.getInteger("chat.presenceChurnHigh", 20);
+    public static final int PRESENCE_CHURN_LOW = Integer.getInteger("chat.presenceChurnLow", 2);
+    // Usernames per /user list page, and presence changes remembered for /user since
+    public static final int PRESENCE_PAGE_SIZE = Integer.getInteger("chat.presencePageSize", 50);
+    public static final int PRESENCE_JOURNAL = Integer.getInteger("chat.presenceJournal", 4096);
+    // Rejected messages a client may rack up (refilled per second) before it is disconnected
+    public static final int FLOOD_STRIKES = positiveIntProperty("chat.floodStrikes", 30);
+    public static final double FLOOD_STRIKES_PER_SECOND = positiveRateProperty("chat.floodStrikesPerSecond", 1);
+    // The same normalised payload seen more than FLOOD_THRESHOLD times within FLOOD_WINDOW_MS is dropped
+    public static final long FLOOD_WINDOW_MS = Long.getLong("chat.floodWindowMs", 10_000);
+    public static final int FLOOD_THRESHOLD = Integer.getInteger("chat.floodThreshold", 20);
+    public static final int FLOOD_MIN_LENGTH = Integer.getInteger("chat.floodMinLength", 12);
+    public static final int FLOOD_SKETCH_WIDTH = Integer.getInteger("chat.floodSketchWidth", 4096);
+    // Sessions that give this key with /operator see operator-only reports in /stats; no operators when empty
+    public static final String OPERATOR_KEY = System.getProperty("chat.operatorKey", "");
+    // Moderation/routing workers, and how many read messages may wait for them before readers block
+    public static final int PIPELINE_THREADS = Integer.getInteger("chat.pipelineThreads", Runtime.getRuntime().availableProcessors());
+    public static final int PIPELINE_QUEUE = Integer.getInteger("chat.pipelineQueue", 10_000);
+    // Threads shared by all group actors
+    public static final int GROUP_THREADS = Integer.getInteger("chat.groupThreads", Runtime.getRuntime().availableProcessors());
+    // Fan-out to at least FANOUT_THRESHOLD recipients is split into partitions written in parallel
+    public static final int FANOUT_THRESHOLD = Integer.getInteger("chat.fanOutThreshold", 256);
+    public static final int FANOUT_THREADS = Integer.getInteger("chat.fanOutThreads", Runtime.getRuntime().availableProcessors());
+    // Groups with at least DIGEST_MIN_MEMBERS members and DIGEST_MIN_RATE messages/s switch to digests
+    public static final int DIGEST_MIN_MEMBERS = Integer.getInteger("chat.digestMinMembers", 1000);
+    public static final double DIGEST_MIN_RATE = doubleProperty("chat.digestMinRate", 50);
+    public static final long DIGEST_WINDOW_MS = Long.getLong("chat.digestWindowMs", 2000);
+    // Chat frames queued per client before the oldest are dropped (control frames are never dropped)
+    public static final int OUTBOUND_CHAT_QUEUE = Integer.getInteger("chat.outboundChatQueue", 1024);
+    // Unsubscribed topics idle for TOPIC_IDLE_MS are removed; past TOPIC_CAP the least recently used one goes
+    public static final int TOPIC_CAP = Integer.getInteger("chat.topicCap", 100_000);
+    public static final long TOPIC_IDLE_MS = Long.getLong("chat.topicIdleMs", 30 * 60 * 1000L);
+    // Topic names and subscription patterns may have at most TOPIC_MAX_LEVELS dot separated levels
+    public static final int TOPIC_MAX_LEVELS = Integer.getInteger("chat.topicMaxLevels", 16);
+    // Groups, topics and subscriptions are kept in STATE_DIR and snapshotted every SNAPSHOT_INTERVAL_MS
+    public static final String STATE_DIR = System.getProperty("chat.stateDir", "state");
+    public static final long SNAPSHOT_INTERVAL_MS = Long.getLong("chat.snapshotIntervalMs", 60_000);
+    // Scheduled messages (/schedule): pending at once, per user, how far ahead and how long a message may be.
+    // One found more than SCHEDULE_GRACE_MS past due when the server starts is dropped rather than sent late.
+    public static final int SCHEDULE_CAP = Integer.getInteger("chat.scheduleCap", 10_000_000);
+    public static final int SCHEDULES_PER_USER = Integer.getInteger("chat.schedulesPerUser", 100);
+    public static final long SCHEDULE_MAX_DELAY_MS = Long.getLong("chat.scheduleMaxDelayMs", 366 * 24 * 60 * 60 * 1000L);
+    public static final long SCHEDULE_GRACE_MS = Long.getLong("chat.scheduleGraceMs", 60 * 60 * 1000L);
+    public static final int SCHEDULE_MAX_CHARS = Integer.getInteger("chat.scheduleMaxChars", 4000);
+    // Listener: port, accept backlog and number of acceptor threads (one socket each where SO_REUSEPORT works)
+    public static final int PORT = Integer.getInteger("chat.port", 50000);
+    public static final int BACKLOG = Integer.getInteger("chat.backlog", 1024);
+    public static final int ACCEPTOR_THREADS = Integer.getInteger("chat.acceptors", Math.min(4, Runtime.getRuntime().availableProcessors()));
+    // New connections are turned away with a busy frame past MAX_CONNECTIONS or below MIN_FREE_HEAP_PERCENT
+    public static final int MAX_CONNECTIONS = Integer.getInteger("chat.maxConnections", 10_000);
+    public static final double MIN_FREE_HEAP_PERCENT = doubleProperty("chat.minFreeHeapPercent", 10);
+    // Clients that don't complete the stream handshake in time are dropped
+    public static final long HANDSHAKE_TIMEOUT_MS = Long.getLong("chat.handshakeTimeoutMs", 10_000);
+    // Quiet connections are pinged after PING_INTERVAL_MS and reaped if nothing comes back within
+    // PONG_TIMEOUT_MS; sessions with no commands or chat for IDLE_TIMEOUT_MS are reaped too (0 = never)
+    public static final long PING_INTERVAL_MS = Long.getLong("chat.pingIntervalMs", 15_000);
+    public static final long PONG_TIMEOUT_MS = Long.getLong("chat.pongTimeoutMs", 10_000);
+    public static final long IDLE_TIMEOUT_MS = Long.getLong("chat.idleTimeoutMs", 60 * 60 * 1000L);
+    // File attachments: side channel port, spool directory, size limit and how long spooled files are kept
+    public static final int FILE_PORT = Integer.getInteger("chat.filePort", PORT + 1);
+    public static final String SPOOL_DIR = System.getProperty("chat.spoolDir", "spool");
+    public static final long MAX_FILE_BYTES = Long.getLong("chat.maxFileBytes", 50L * 1024 * 1024);
+    public static final long FILE_TTL_MS = Long.getLong("chat.fileTtlMs", 10 * 60 * 1000L);
+    public static final int FILE_THREADS = Integer.getInteger("chat.fileThreads", 4);
+    // File connections waiting for a thread past FILE_QUEUE are closed; a transfer that sends or takes
+    // nothing for FILE_IDLE_TIMEOUT_MS is dropped, and the request line must come within HANDSHAKE_TIMEOUT_MS
+    public static final int FILE_QUEUE = Integer.getInteger("chat.fileQueue", 64);
+    public static final long FILE_IDLE_TIMEOUT_MS = Long.getLong("chat.fileIdleTimeoutMs", 30_000);
+    // Uploads a user may have announced or spooled at once, and their bytes, until recipients have them
+    public static final int FILE_UPLOADS_PER_SENDER = Integer.getInteger("chat.fileUploadsPerSender", 8);
+    public static final long FILE_BYTES_PER_SENDER = Long.getLong("chat.fileBytesPerSender", 200L * 1024 * 1024);
+    // Inbound frames over MAX_FRAME_BYTES end the connection; longer lines are sent in parts and
+    // relayed part by part, up to MAX_LINE_CHARS in total
+    public static final int MAX_FRAME_BYTES = Integer.getInteger("chat.maxFrameBytes", 64 * 1024);
+    public static final int MAX_LINE_CHARS = Integer.getInteger("chat.maxLineChars", 1_000_000);
+    // Logical sessions one connection may open on top of its own (bots and gateways multiplexing identities)
+    public static final int MAX_SESSIONS_PER_CONNECTION = Integer.getInteger("chat.maxSessionsPerConnection", 1000);
+    // Tenants (hotel properties) are chosen with a HELLO frame; clients that send none join DEFAULT_TENANT.
+    // A tenant's state lives in STATE_DIR/tenants/<name>, the default tenant's in STATE_DIR itself.
+    public static final String DEFAULT_TENANT = System.getProperty("chat.defaultTenant", "default");
+    public static final int MAX_TENANTS = Integer.getInteger("chat.maxTenants", 1000);
+    // Only the default tenant, the tenants listed here (comma separated) and tenants provisioned by
+    // creating STATE_DIR/tenants/<name> are served; a HELLO for any other name is refused
+    public static final Set<String> TENANTS = listProperty("chat.tenants");
+    // Threads shared by every tenant's timers: presence batching, digests, topic sweeps, scheduled messages and snapshots
+    public static final int TIMER_THREADS = Integer.getInteger("chat.timerThreads", 2);
+    // Quotas of each named tenant, overridable for one tenant with -Dchat.tenant.<name>.<quota>.
+    // The default tenant falls back to the server-wide limits instead.
+    public static final int TENANT_MAX_CONNECTIONS = Integer.getInteger("chat.tenant.maxConnections", 1000);
+    public static final int TENANT_MAX_GROUPS = Integer.getInteger("chat.tenant.maxGroups", 1000);
+    public static final int TENANT_TOPIC_CAP = Integer.getInteger("chat.tenant.topicCap", 10_000);
+    public static final int TENANT_PIPELINE_QUEUE = Integer.getInteger("chat.tenant.pipelineQueue", 1000);
+    public static final int TENANT_FLOOD_SKETCH_WIDTH = Integer.getInteger("chat.tenant.floodSketchWidth", 1024);
+    public static final int TENANT_MAX_SCHEDULES = Integer.getInteger("chat.tenant.maxSchedules", 100_000);
+
+    private ServerConfig() {
+    }
+
+    /**
+     * Sustained messages per second allowed for a command class, -Dchat.rate.<class>
+     */
+    public static double rateFor(RateLimiter.CommandClass commandClass) {
+        double fallback = switch (commandClass) {
+            case CHAT, SEND -> 5;
+            case GROUP, TOPIC -> 2;
+            case REGISTER -> 0.5;
+        };
+        return positiveRateProperty("chat.rate." + commandClass.name().toLowerCase(), fallback);
+    }
+
+    /**
+     * Messages that may be sent at once after being idle for a command class, -Dchat.burst.<class>
+     */
+    public static int burstFor(RateLimiter.CommandClass commandClass) {
+        int fallback = switch (commandClass) {
+            case CHAT, SEND -> 10;
+            case GROUP, TOPIC -> 5;
+            case REGISTER -> 3;
+        };
+        return positiveIntProperty("chat.burst." + commandClass.name().toLowerCase(), fallback);
+    }
+
+    /**
+     * One tenant's quota, -Dchat.tenant.<name>.<quota>
+     */
+    public static int tenantQuota(String tenant, String quota, int fallback) {
+        return Integer.getInteger("chat.tenant." + tenant + "." + quota, fallback);
+    }
+
+    /**
+     * A comma separated list, lower cased, with blank entries left out
+     */
+    private static Set<String> listProperty(String name) {
+        Set<String> values = new LinkedHashSet<>();
+        for (String value : System.getProperty(name, "").split(",")) {
+            if (!value.isBlank()) {
+                values.add(value.trim().toLowerCase());
+            }
+        }
+        return Set.copyOf(values);
+    }
+
+    /**
+     * A token bucket rate: zero, negative or infinite rates would turn a limit off or block
+     * everything, so they are ignored like unparseable ones
+     */
+    private static double positiveRateProperty(String name, double fallback) {
+        double value = doubleProperty(name, fallback);
+        if (!(value > 0) || Double.isInfinite(value)) {
+            System.err.println("Ignoring invalid value for " + name + ": " + value + " (must be a positive number)");
+            return fallback;
+        }
+        return value;
+    }
+
+    private static int positiveIntProperty(String name, int fallback) {
+        int value = Integer.getInteger(name, fallback);
+        if (value < 1) {
+            System.err.println("Ignoring invalid value for " + name + ": " + value + " (must be at least 1)");
+            return fallback;
+        }
+        return value;
+    }
+
+    private static double doubleProperty(String name, double fallback) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            System.err.println("Ignoring invalid value for " + name + ": " + value);
+            return fallback;
+        }
+    }
+}
@@ -1,414 +1,782 @@
 package server;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.Scanner;
+import java.util.function.Consumer;
 import shared.Message;
 import shared.SwearFilter;
 
-public class ServerHandler implements Runnable {
-    private final Socket socket;
-    private final ObjectInputStream inStream;
-    private final ObjectOutputStream outStream;
+/**
+ * One chat identity: registration, commands and chat for a single session of a client
+ * connection. The socket, streams, queues and rate limits belong to the ClientConnection, so a
+ * session only holds its name, group and the state of the line being read; a connection
+ * multiplexing hundreds of identities pays a few hundred bytes for each.
+ */
+public class ServerHandler {
+    // The filter is read-only once loaded, so every session shares one
+    private static final SwearFilter swearFilter = new SwearFilter();
+
+    private final ClientConnection connection;
+    private final int sessionId;
     private final ConnectionPool pool;
     private final ChatGroup chatGroup;
     private final TopicHandler topicHandler;
-    private String username = "Anonymous";
-    private String currentGroup = "";
-    private boolean isRegistered = false;
-    private final SwearFilter swearFilter = new SwearFilter(); // Using shared SwearFilter
+    private final MessageScheduler scheduler;
+    private final FileTransfers fileTransfers;
+    private final FloodDetector floodDetector;
+    private final MessagePipeline.Lane lane;
+    // Written by this client's pipeline lane, read by other clients' fan-out
+    private volatile String username = "Anonymous";
+    private volatile String currentGroup = "";
+    private volatile boolean isRegistered = false;
+    private volatile boolean closed = false; // the session ended; groups must not take it in any more
+    private volatile String scheduleKey;     // owns the scheduled messages made or claimed in this session, null until then
+    private boolean isOperator = false; // pipeline lane: gave the operator key
+    private boolean registrationDone = false; // reader thread: past the initial REGISTER
+    private final RateLimiter rateLimiter; // the connection's, shared with its other sessions
+    // Lines too long for one frame arrive as a CHAT frame followed by CHUNK frames
+    private int lineChars = 0;             // reader thread: characters received so far of the current line
+    private boolean lineAdmitted = false;  // reader thread: false if the current line was rate limited
+    private Consumer<String> continuation; // pipeline lane: where further parts of the current line go
+    // Correlation id of the request being handled, 0 if the client is not waiting on a reply.
+    // Set on the reader thread during registration, on the pipeline lane after it.
+    private volatile long currentRequest = 0;
 
-    public ServerHandler(Socket socket, ConnectionPool pool, ChatGroup chatGroup, TopicHandler topicHandler) {
-        this.socket = socket;
+    public ServerHandler(ClientConnection connection, int sessionId, ConnectionPool pool, ChatGroup chatGroup,
+                         TopicHandler topicHandler, MessageScheduler scheduler, FloodDetector floodDetector,
+                         FileTransfers fileTransfers) {
+        this.connection = connection;
+        this.sessionId = sessionId;
         this.pool = pool;
         this.chatGroup = chatGroup;
         this.topicHandler = topicHandler;
-        try {
-            // Create output stream first to avoid potential deadlock
-            this.outStream = new ObjectOutputStream(socket.getOutputStream());
-            this.inStream = new ObjectInputStream(socket.getInputStream());
-        } catch (IOException e) {
-            System.err.println("Error setting up streams: " + e.getMessage());
-            throw new RuntimeException("Failed to initialize streams", e);
-        }
+        this.scheduler = scheduler;
+        this.floodDetector = floodDetector;
+        this.lane = connection.getLane();
+        this.rateLimiter = connection.getRateLimiter();
+        this.fileTransfers = fileTransfers;
     }
 
     public String getUsername() {
         return username;
     }
 
+    public boolean isRegistered() {
+        return isRegistered;
+    }
+
+    /**
+     * Gets the connection's window of unacknowledged frames, kept for a resume if the
+     * connection drops
+     * @return The window, or null for a logical session: the window belongs to session 0
+     */
+    public DeliveryWindow getDeliveryWindow() {
+        return sessionId == 0 ? connection.getDeliveryWindow() : null;
+    }
+
+    /**
+     * @return The token the client can resume the connection with, or null for a logical session
+     */
+    public String getResumeToken() {
+        return sessionId == 0 ? connection.getResumeToken() : null;
+    }
+
+    /**
+     * Gets the id of the request this session is handling, for replies sent after it has moved on
+     */
+    long currentRequest() {
+        return currentRequest;
+    }
+
     public String getCurrentGroup() { return currentGroup; }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    String getScheduleKey() {
+        return scheduleKey;
+    }
+
+    void setScheduleKey(String key) {
+        this.scheduleKey = key;
+    }
     
     public void setCurrentGroup(String group) { 
         this.currentGroup = group; 
     }
 
-    @Override
-    public void run() {
-        try {
-            // Process user registration until successful
-            processInitialRegistration();
-            
-            // Main communication loop
-            handleClientCommunication();
-            
-        } catch (IOException | ClassNotFoundException e) {
-            System.err.println("Connection error with user " + username + ": " + e.getMessage());
-            if (isRegistered) {
-                pool.removeClient(this);
+    /**
+     * Handles one command, chat or chunk frame for this session; called on the connection's
+     * reader thread. Registration comes first, everything after it is rate limited here and
+     * handed to the pipeline, which blocks when full so a flooding client slows itself down.
+     * @return false once the client has said /exit on the connection's own session
+     * @throws IOException if the connection has been closed for flooding
+     */
+    boolean onFrame(Message msg) throws IOException {
+        if (!registrationDone) {
+            register(msg);
+            return true;
+        }
+        String body = msg.getMessageBody();
+        if (msg.getType() == Message.Type.CHUNK) {
+            // The line was rate limited as a whole with its first part; parts past the cap are dropped
+            if (!lineAdmitted || lineChars > ServerConfig.MAX_LINE_CHARS) {
+                return true;
+            }
+            lineChars += body.length();
+            if (lineChars <= ServerConfig.MAX_LINE_CHARS) {
+                lane.submit(() -> relayPart(body));
+            } else {
+                ServerStats.recordLineCutOff();
+                sendMessageToClient(new Message("Message cut off after " + ServerConfig.MAX_LINE_CHARS + " characters.", "Server"));
             }
+            return true;
         }
+        lineChars = body.length();
+        long requestId = msg.getRequestId();
+        lineAdmitted = admit(body, requestId);
+        if (!lineAdmitted) {
+            return true;
+        }
+
+        // Exit goes through the pipeline too, so everything sent before it is delivered first
+        if (body.equalsIgnoreCase("/exit")) {
+            if (requestId != 0) {
+                reply(requestId, Message.reply(Message.Status.OK, "Goodbye."));
+            }
+            if (sessionId != 0) {
+                endSession();
+                return true;
+            }
+            lane.submit(this::disconnect);
+            return false;
+        }
+
+        // Moderation, routing and replies happen on the pipeline workers, in arrival order
+        lane.submit(() -> processMessage(body, requestId));
+        return true;
     }
-    
-    private void processInitialRegistration() throws IOException, ClassNotFoundException {
-        boolean registrationSuccessful = false;
+
+    private void register(Message initialMsg) throws IOException {
+        if (initialMsg.getType() == Message.Type.CHUNK) {
+            return; // nothing to continue before registering
+        }
+        String initialBody = initialMsg.getMessageBody();
+        currentRequest = initialMsg.getRequestId();
+        if (!admit(initialBody, currentRequest)) {
+            return;
+        }
         
-        while (!registrationSuccessful) {
-            Message initialMsg = (Message) inStream.readObject();
-            String initialBody = initialMsg.getMessageBody();
+        // Check if this is a REGISTER command
+        if (initialBody.startsWith("REGISTER ")) {
+            // Extract username from the REGISTER command, preserving spaces
+            String requestedUsername = initialBody.substring("REGISTER ".length()).trim();
             
-            // Check if this is a REGISTER command
-            if (initialBody.startsWith("REGISTER ")) {
-                // Extract username from the REGISTER command, preserving spaces
-                String requestedUsername = initialBody.substring("REGISTER ".length()).trim();
-                
-                // If username is empty, fall back to the user field
-                if (requestedUsername.isEmpty()) {
-                    requestedUsername = initialMsg.getUser();
-                }
+            // If username is empty, fall back to the user field
+            if (requestedUsername.isEmpty()) {
+                requestedUsername = initialMsg.getUser();
+            }
+            
+            // Check username for profanity - reject instead of filtering
+            if (!swearFilter.isClean(requestedUsername)) {
+                // Send error about inappropriate username
+                reply(Message.Status.REJECTED, "Username contains inappropriate content. Please choose another username.");
+                registrationFailed();
+                return; // Try again with a new username
+            }
+            
+            // Check if the username already exists
+            if (pool.findClientByUsername(requestedUsername) != null) {
+                // Username already exists, send an error message
+                reply(Message.Status.CONFLICT, "Username '" + requestedUsername + "' already exists. Please try another username.");
+                registrationFailed();
+            } else {
+                // Username is available
+                username = requestedUsername;
+                isRegistered = true;
+                registrationDone = true;
+                System.out.println("User registered: " + username); // Log registration
                 
-                // Check username for profanity - reject instead of filtering
-                if (!swearFilter.isClean(requestedUsername)) {
-                    // Send error about inappropriate username
-                    Message errorMsg = new Message("Username contains inappropriate content. Please choose another username.", "Server");
-                    sendMessageToClient(errorMsg);
-                    continue; // Try again with a new username
-                }
+                // Send confirmation message back to the client
+                reply(Message.Status.OK, "Successfully registered as: " + username);
+                issueResumeToken();
+                currentRequest = 0; // restored groups and topics are announced separately
                 
-                // Check if the username already exists
-                if (pool.findClientByUsername(requestedUsername) != null) {
-                    // Username already exists, send an error message
-                    Message errorMsg = new Message("Username '" + requestedUsername + "' already exists. Please try another username.", "Server");
-                    sendMessageToClient(errorMsg);
-                } else {
-                    // Username is available
-                    username = requestedUsername;
-                    isRegistered = true;
-                    registrationSuccessful = true;
-                    System.out.println("User registered: " + username); // Log registration
-                    
-                    // Send confirmation message back to the client
-                    Message confirm = new Message("Successfully registered as: " + username, "Server");
-                    sendMessageToClient(confirm);
-                    
-                    // Add client to the connection pool
-                    pool.addClient(this);
-                }
+                // Add client to the connection pool
+                pool.addClient(this);
+                restoreState();
+            }
+        } else {
+            // Handle non-REGISTER initial message
+            String requestedUsername = initialMsg.getUser();
+            
+            // Check username for profanity - reject instead of filtering
+            if (!swearFilter.isClean(requestedUsername)) {
+                // Send error about inappropriate username
+                reply(Message.Status.REJECTED, "Username contains inappropriate content. Please choose another username.");
+                registrationFailed();
+                return; // Try again with a new username
+            }
+            
+            if (pool.findClientByUsername(requestedUsername) != null) {
+                reply(Message.Status.CONFLICT, "Username '" + requestedUsername + "' already exists. Please try another username.");
+                registrationFailed(); // Try again with a new username
             } else {
-                // Handle non-REGISTER initial message
-                String requestedUsername = initialMsg.getUser();
+                username = requestedUsername;
+                isRegistered = true;
+                registrationDone = true;
+                System.out.println("User registered (fallback): " + username);
                 
-                // Check username for profanity - reject instead of filtering
-                if (!swearFilter.isClean(requestedUsername)) {
-                    // Send error about inappropriate username
-                    Message errorMsg = new Message("Username contains inappropriate content. Please choose another username.", "Server");
-                    sendMessageToClient(errorMsg);
-                    continue; // Try again with a new username
-                }
+                reply(Message.Status.OK, "Successfully registered as: " + username);
+                issueResumeToken();
+                currentRequest = 0; // restored groups and topics are announced separately
                 
-                if (pool.findClientByUsername(requestedUsername) != null) {
-                    Message errorMsg = new Message("Username '" + requestedUsername + "' already exists. Please try another username.", "Server");
-                    sendMessageToClient(errorMsg);
-                    // Try again with a new username
-                } else {
-                    username = requestedUsername;
-                    isRegistered = true;
-                    registrationSuccessful = true;
-                    System.out.println("User registered (fallback): " + username);
-                    
-                    Message confirm = new Message("Successfully registered as: " + username, "Server");
-                    sendMessageToClient(confirm);
-                    
-                    pool.addClient(this);
-                }
+                pool.addClient(this);
+                restoreState();
             }
         }
     }
-    
-    private void handleClientCommunication() throws IOException, ClassNotFoundException {
-        // Main loop to read further messages from the client
-        while (true) {
-            Message msg = (Message) inStream.readObject();
-            String body = msg.getMessageBody();
-
-            // Check for exit commands
-            if (body.equalsIgnoreCase("/exit")) {
-                try (socket) {
-                    pool.removeClient(this);
-                }
-                System.out.println(username + " disconnected.");
-                break;
+
+    /**
+     * A logical session that could not register is closed again, so the client can retry the
+     * REGISTER on the same id; the connection's own session just waits for another attempt
+     */
+    private void registrationFailed() {
+        if (sessionId != 0) {
+            connection.sessionEnded(sessionId);
+        }
+    }
+
+    /**
+     * Puts a returning user back in their group and topics from before a server restart
+     */
+    private void restoreState() {
+        chatGroup.restoreMembership(this);
+        topicHandler.restoreSubscriptions(this);
+    }
+
+    /**
+     * Closes the whole connection after /exit on its own session
+     */
+    private void disconnect() {
+        pool.removeClient(this);
+        // The writer sends whatever is still queued, then closes the socket
+        connection.close();
+        System.out.println(username + " disconnected.");
+    }
+
+    /**
+     * Ends a logical session on the reader thread; it leaves the pool once its queued messages are handled
+     */
+    private void endSession() {
+        connection.sessionEnded(sessionId);
+        lane.submit(() -> {
+            leaveChat(false);
+            System.out.println(username + " closed session " + sessionId + ".");
+        });
+    }
+
+    /**
+     * Takes this session out of the chat once its connection has gone; runs on the pipeline lane
+     */
+    void connectionClosed() {
+        leaveChat(true);
+    }
+
+    /**
+     * @param dropped true if the connection went without /exit, so its unacknowledged frames are kept for a resume
+     */
+    private void leaveChat(boolean dropped) {
+        if (isRegistered) {
+            if (dropped) {
+                pool.clientDropped(this);
+            } else {
+                pool.removeClient(this);
             }
+        }
+        // Group membership and subscriptions belong to the session; drop them so other members
+        // stop fanning out to it and idle topics can be evicted. Both stay stored for next time.
+        closed = true;
+        chatGroup.clientGone(this);
+        topicHandler.unsubscribeAll(this);
+    }
 
-            // Handle register command properly preserving spaces in username
-            if (body.startsWith("/register ")) {
-                String newUsername = body.substring("/register ".length()).trim();
-                
-                // Check if new username is empty
-                if (newUsername.isEmpty()) {
-                    sendMessageToClient(new Message("Username cannot be empty.", "Server"));
-                    continue;
-                }
-                
-                // Check username for profanity - reject instead of filtering
-                if (!swearFilter.isClean(newUsername)) {
-                    // Send error about inappropriate username
-                    sendMessageToClient(new Message("Username contains inappropriate content. Please choose another username.", "Server"));
-                    continue; // Skip to next message
-                }
-                
-                ServerHandler existingUser = pool.findClientByUsername(newUsername);
-                
-                if (existingUser != null && existingUser != this) {
-                    // Username already exists and it's not this user - send an error message
-                    sendMessageToClient(new Message("Username '" + newUsername + "' already exists. Please try another username.", "Server"));
-                } else if (existingUser == this) {
-                    // User is trying to register with their current username
-                    sendMessageToClient(new Message("You are already registered as: " + newUsername, "Server"));
+    /**
+     * Gives the client a token to resume the connection with if it drops. Only the connection's
+     * own session gets one, as the delivery window covers every session on the connection.
+     */
+    private void issueResumeToken() {
+        if (sessionId == 0) {
+            connection.issueResumeToken();
+        }
+    }
+
+    /**
+     * Handles one command or chat message. Runs on a pipeline worker; messages from one
+     * client are processed one at a time in the order they were read.
+     * @param requestId The client's correlation id, echoed on the reply; 0 if it awaits none
+     */
+    private void processMessage(String body, long requestId) {
+        currentRequest = requestId;
+        continuation = null; // only the routes below take further parts
+        // Handle register command properly preserving spaces in username
+        if (body.startsWith("/register ")) {
+            String newUsername = body.substring("/register ".length()).trim();
+            
+            // Check if new username is empty
+            if (newUsername.isEmpty()) {
+                reply(Message.Status.INVALID, "Username cannot be empty.");
+                return;
+            }
+            
+            // Check username for profanity - reject instead of filtering
+            if (!swearFilter.isClean(newUsername)) {
+                // Send error about inappropriate username
+                reply(Message.Status.REJECTED, "Username contains inappropriate content. Please choose another username.");
+                return; // Skip to next message
+            }
+            
+            ServerHandler existingUser = pool.findClientByUsername(newUsername);
+            
+            if (existingUser != null && existingUser != this) {
+                // Username already exists and it's not this user - send an error message
+                reply(Message.Status.CONFLICT, "Username '" + newUsername + "' already exists. Please try another username.");
+            } else if (existingUser == this) {
+                // User is trying to register with their current username
+                reply(Message.Status.OK, "You are already registered as: " + newUsername);
+            } else {
+                // Valid new username
+                if (!isRegistered) {
+                    pool.addClient(this);
+                    isRegistered = true;
                 } else {
-                    // Valid new username
-                    if (!isRegistered) {
-                        pool.addClient(this);
-                        isRegistered = true;
-                    } else {
-                        // Create a clean server announcement without filtering
-                        String announcement = "User " + username + " has re-registered as: " + newUsername;
-                        // Use a direct broadcast that won't filter server messages
-                        Message serverMsg = new Message(announcement, "Server");
-                        pool.broadcast(serverMsg, this);
-                    }
-                    username = newUsername;
-                    sendMessageToClient(new Message("Successfully registered as: " + username, "Server"));
+                    // Create a clean server announcement without filtering
+                    String announcement = "User " + username + " has re-registered as: " + newUsername;
+                    // Use a direct broadcast that won't filter server messages
+                    Message serverMsg = new Message(announcement, "Server");
+                    pool.broadcast(serverMsg, this);
                 }
-                continue;
+                String previousName = username;
+                username = newUsername;
+                pool.clientRenamed(previousName, username);
+                chatGroup.clientRenamed(previousName, username);
+                topicHandler.clientRenamed(previousName, username);
+                reply(Message.Status.OK, "Successfully registered as: " + username);
             }
-            
-            try (Scanner commandScanner = new Scanner(body)) {
-                if (commandScanner.hasNext()) {
-                    String command = commandScanner.next().toLowerCase();
-                    
-                    // Command handling logic
-                    switch (command) {
-                        case "/topic" -> {
-                            if (commandScanner.hasNext()) {
-                                String subCommand = commandScanner.next().toLowerCase();
-                                String args = commandScanner.hasNextLine() ? commandScanner.nextLine().trim() : "";
-                                String response = topicHandler.processTopicCommand(subCommand, args, this);
-                                sendMessageToClient(new Message(response, "Server"));
-                            } else {
-                                sendMessageToClient(new Message("Please specify a topic command: /topic <create|subscribe|unsubscribe|list> [args]", "Server"));
-                            }
+            return;
+        }
+        
+        try (Scanner commandScanner = new Scanner(body)) {
+            if (commandScanner.hasNext()) {
+                String command = commandScanner.next().toLowerCase();
+                
+                // Command handling logic
+                switch (command) {
+                    case "/topic" -> {
+                        if (commandScanner.hasNext()) {
+                            String subCommand = commandScanner.next().toLowerCase();
+                            String args = commandScanner.hasNextLine() ? commandScanner.nextLine().trim() : "";
+                            reply(topicHandler.processTopicCommand(subCommand, args, this));
+                        } else {
+                            reply(Message.Status.INVALID, "Please specify a topic command: /topic <create|subscribe|unsubscribe|list> [args]");
                         }
-                        case "/topics" -> {
-                            // old command for backward compatibility
-                            String response = topicHandler.listTopics();
-                            sendMessageToClient(new Message(response, "Server"));
+                    }
+                    case "/schedule" -> {
+                        if (commandScanner.hasNext()) {
+                            String subCommand = commandScanner.next().toLowerCase();
+                            String args = commandScanner.hasNextLine() ? commandScanner.nextLine().trim() : "";
+                            reply(scheduler.processScheduleCommand(subCommand, args, this));
+                        } else {
+                            reply(Message.Status.INVALID, "Please specify a schedule command: /schedule <in|at|list|cancel|claim> [args]");
                         }
-                        case "/user" -> {
-                            if (commandScanner.hasNext()) {
-                                String subCommand = commandScanner.next().toLowerCase();
-                                switch (subCommand) {
-                                    case "list" -> {
-                                        // Get and send list of online users
-                                        String response = pool.listUsers();
-                                        sendMessageToClient(new Message(response, "Server"));
+                    }
+                    case "/topics" -> {
+                        // old command for backward compatibility
+                        String response = topicHandler.listTopics();
+                        reply(Message.Status.OK, response);
+                    }
+                    case "/user" -> {
+                        if (commandScanner.hasNext()) {
+                            String subCommand = commandScanner.next().toLowerCase();
+                            switch (subCommand) {
+                                case "list" -> {
+                                    // Get and send a page of online users: /user list [after <username>]
+                                    String after = "";
+                                    if (commandScanner.hasNext("(?i)after")) {
+                                        commandScanner.next();
+                                        after = commandScanner.hasNextLine() ? commandScanner.nextLine().trim() : "";
                                     }
-                                    case "count" -> {
-                                        // Get and send count of online users
-                                        String response = pool.getUserCount();
-                                        sendMessageToClient(new Message(response, "Server"));
+                                    String response = pool.listUsers(after);
+                                    reply(Message.Status.OK, response);
+                                }
+                                case "since" -> {
+                                    // Get the joins/leaves since a presence version: /user since <version>
+                                    if (commandScanner.hasNextLong()) {
+                                        String response = pool.usersSince(commandScanner.nextLong());
+                                        reply(Message.Status.OK, response);
+                                    } else {
+                                        reply(Message.Status.INVALID, "Please specify a version: /user since <version>");
                                     }
-                                    default -> sendMessageToClient(new Message("Invalid user command. Try '/user list' or '/user count'", "Server"));
                                 }
-                            } else {
-                                sendMessageToClient(new Message("Please specify a user command: /user <list|count>", "Server"));
+                                case "count" -> {
+                                    // Get and send count of online users
+                                    String response = pool.getUserCount();
+                                    reply(Message.Status.OK, response);
+                                }
+                                default -> reply(Message.Status.INVALID, "Invalid user command. Try '/user list', '/user since <version>' or '/user count'");
                             }
+                        } else {
+                            reply(Message.Status.INVALID, "Please specify a user command: /user <list|since|count>");
                         }
-                        case "/group" -> {
-                            if (commandScanner.hasNext()) {
-                                String subCommand = commandScanner.next().toLowerCase();
-                                String args = commandScanner.hasNextLine() ? commandScanner.nextLine().trim() : "";
-                                String response = chatGroup.processGroupCommand(subCommand, args, this);
-                                sendMessageToClient(new Message(response, "Server"));
-                            } else {
-                                sendMessageToClient(new Message("Please specify a group command: /group <create|join|leave|remove|list> [args]", "Server"));
-                            }
+                    }
+                    case "/group" -> {
+                        if (commandScanner.hasNext()) {
+                            String subCommand = commandScanner.next().toLowerCase();
+                            String args = commandScanner.hasNextLine() ? commandScanner.nextLine().trim() : "";
+                            // The group replies to us itself once it has handled the command
+                            chatGroup.processGroupCommand(subCommand, args, this);
+                        } else {
+                            reply(Message.Status.INVALID, "Please specify a group command: /group <create|join|leave|remove|list|realtime> [args]");
                         }
-                        case "/create" -> { // old command
-                            if (commandScanner.hasNext()) {
-                                String groupName = commandScanner.next();
-                                String response = chatGroup.createGroup(groupName);
-                                sendMessageToClient(new Message(response, "Server"));
-                            }
+                    }
+                    case "/create" -> { // old command
+                        if (commandScanner.hasNext()) {
+                            String groupName = commandScanner.next();
+                            chatGroup.createGroup(groupName, this);
+                        } else {
+                            reply(Message.Status.INVALID, "Please specify a group name: /create <groupName>");
                         }
-                        case "/join" -> { // old command
-                            if (commandScanner.hasNext()) {
-                                String groupName = commandScanner.next();
-                                String response = chatGroup.joinGroup(groupName, this);
-                                currentGroup = groupName;
-                                sendMessageToClient(new Message(response, "Server"));
-                            }
+                    }
+                    case "/join" -> { // old command
+                        if (commandScanner.hasNext()) {
+                            String groupName = commandScanner.next();
+                            chatGroup.joinGroup(groupName, this);
+                        } else {
+                            reply(Message.Status.INVALID, "Please specify a group name: /join <groupName>");
                         }
-                        case "/leave" -> { // old command
-                            if (commandScanner.hasNext()) {
-                                String groupName = commandScanner.next();
-                                String response = chatGroup.leaveGroup(groupName, this);
-                                if (currentGroup.equalsIgnoreCase(groupName)) {
-                                    currentGroup = "";
-                                }
-                                sendMessageToClient(new Message(response, "Server"));
-                            }
+                    }
+                    case "/leave" -> { // old command
+                        if (commandScanner.hasNext()) {
+                            String groupName = commandScanner.next();
+                            chatGroup.leaveGroup(groupName, this);
+                        } else {
+                            reply(Message.Status.INVALID, "Please specify a group name: /leave <groupName>");
                         }
-                        case "/remove" -> { // old command
-                            if (commandScanner.hasNext()) {
-                                String groupName = commandScanner.next();
-                                String response = chatGroup.removeGroup(groupName, this);
-                                sendMessageToClient(new Message(response, "Server"));
-                            }
+                    }
+                    case "/remove" -> { // old command
+                        if (commandScanner.hasNext()) {
+                            String groupName = commandScanner.next();
+                            chatGroup.removeGroup(groupName, this);
+                        } else {
+                            reply(Message.Status.INVALID, "Please specify a group name: /remove <groupName>");
                         }
-                        case "/send" -> { //Send message to user or group
-                            if (commandScanner.hasNext()) {
-                                String targetType = commandScanner.next().toLowerCase();
-                                
-                                if (targetType.equals("user") || targetType.equals("group")) {
-                                    // New command format: /send user|group <target> <message>
-                                    if (commandScanner.hasNext()) {
-                                        String target = commandScanner.next();
-                                        String text = commandScanner.hasNextLine() ? commandScanner.nextLine().trim() : "";
-                                        
-                                        // Filter the message content
-                                        text = swearFilter.filter(text);
-                                        
-                                        if (targetType.equals("group")) {
-                                            if (chatGroup.groupExists(target)) {
-                                                chatGroup.sendToGroup(target, new Message(text, username), this);
-                                            } else {
-                                                sendMessageToClient(new Message("Group " + target + " not found.", "Server"));
-                                            }
-                                        } else { // user
-                                            ServerHandler recipient = pool.findClientByUsername(target);
-                                            if (recipient != null) {
-                                                Message directMsg = new Message("PRIVATE MESSAGE | " + username + ": " + text, "");
-                                                recipient.sendMessageToClient(directMsg);
-                                                sendMessageToClient(new Message("Message sent to user: " + target, "Server"));
-                                            } else {
-                                                sendMessageToClient(new Message("User " + target + " not found.", "Server"));
-                                            }
-                                        }
-                                    } else {
-                                        sendMessageToClient(new Message("Please specify a target: /send " + targetType + " <target> <message>", "Server"));
-                                    }
-                                } else {
-                                    // old format for backward compatibility: /send <target> <message>
-                                    String target = targetType; // In this case, targetType is actually the target
+                    }
+                    case "/send" -> { //Send message to user or group
+                        if (commandScanner.hasNext()) {
+                            String targetType = commandScanner.next().toLowerCase();
+                            
+                            if (targetType.equals("file")) {
+                                // /send file <target> <uploadId> <size> <name>, rewritten by the client from /send file <target> <path>
+                                offerFile(commandScanner);
+                            } else if (targetType.equals("user") || targetType.equals("group")) {
+                                // New command format: /send user|group <target> <message>
+                                if (commandScanner.hasNext()) {
+                                    String target = commandScanner.next();
                                     String text = commandScanner.hasNextLine() ? commandScanner.nextLine().trim() : "";
                                     
-                                    // Filter the message content
-                                    text = swearFilter.filter(text);
-                                    
-                                    if (chatGroup.groupExists(target)) {
-                                        //Send message to matching group name
-                                        chatGroup.sendToGroup(target, new Message(text, username), this);
-                                    } else {
-                                        //If no match send message to username
+                                    if (targetType.equals("group")) {
+                                        if (chatGroup.groupExists(target)) {
+                                            if (relay(text, toGroup(target))) {
+                                                acknowledge();
+                                            }
+                                        } else {
+                                            reply(Message.Status.NOT_FOUND, "Group " + target + " not found.");
+                                        }
+                                    } else { // user
                                         ServerHandler recipient = pool.findClientByUsername(target);
                                         if (recipient != null) {
-                                            Message directMsg = new Message("PRIVATE MESSAGE | " + username + ": " + text, "");
-                                            recipient.sendMessageToClient(directMsg);
+                                            if (relay(text, toUser(recipient))) {
+                                                reply(Message.Status.OK, "Message sent to user: " + target);
+                                            }
                                         } else {
-                                            sendMessageToClient(new Message("User or group " + target + " not found.", "Server"));
+                                            reply(Message.Status.NOT_FOUND, "User " + target + " not found.");
                                         }
                                     }
+                                } else {
+                                    reply(Message.Status.INVALID, "Please specify a target: /send " + targetType + " <target> <message>");
                                 }
                             } else {
-                                sendMessageToClient(new Message("Please specify a target type (user/group): /send <user|group> <target> <message>", "Server"));
-                            }
-                        }
-                        case "/register" -> {
-                            if (commandScanner.hasNext()) {
-                                String newUsername = commandScanner.next();
-                                
-                                // Check username for profanity - reject instead of filtering
-                                if (!swearFilter.isClean(newUsername)) {
-                                    // Send error about inappropriate username
-                                    sendMessageToClient(new Message("Username contains inappropriate content. Please choose another username.", "Server"));
-                                    commandScanner.close();
-                                    continue; // Skip to next message
-                                }
-                                
-                                ServerHandler existingUser = pool.findClientByUsername(newUsername);
+                                // old format for backward compatibility: /send <target> <message>
+                                String target = targetType; // In this case, targetType is actually the target
+                                String text = commandScanner.hasNextLine() ? commandScanner.nextLine().trim() : "";
                                 
-                                if (existingUser != null && existingUser != this) {
-                                    // Username already exists and it's not this user - send an error message
-                                    sendMessageToClient(new Message("Username '" + newUsername + "' already exists. Please try another username.", "Server"));
-                                } else if (existingUser == this) {
-                                    // User is trying to register with their current username
-                                    sendMessageToClient(new Message("You are already registered as: " + newUsername, "Server"));
+                                if (chatGroup.groupExists(target)) {
+                                    //Send message to matching group name
+                                    if (relay(text, toGroup(target))) {
+                                        acknowledge();
+                                    }
                                 } else {
-                                    // Valid new username
-                                    if (!isRegistered) {
-                                        pool.addClient(this);
-                                        isRegistered = true;
+                                    //If no match send message to username
+                                    ServerHandler recipient = pool.findClientByUsername(target);
+                                    if (recipient != null) {
+                                        if (relay(text, toUser(recipient))) {
+                                            acknowledge();
+                                        }
                                     } else {
-                                        // Announce re-registration
-                                        String announcement = "User " + username + " has re-registered as: " + newUsername;
-                                        pool.broadcast(new Message(announcement, "Server"), this);
+                                        reply(Message.Status.NOT_FOUND, "User or group " + target + " not found.");
                                     }
-                                    username = newUsername;
-                                    sendMessageToClient(new Message("Successfully registered as: " + username, "Server"));
                                 }
-                            } else {
-                                // No username provided with the /register command
-                                sendMessageToClient(new Message("Please specify a username: /register <username>", "Server"));
                             }
+                        } else {
+                            reply(Message.Status.INVALID, "Please specify a target type (user/group): /send <user|group> <target> <message>");
                         }
-                        case "/unregister" -> {
-                            isRegistered = false;
-                            pool.removeClient(this);
-                            System.out.println("User unregistered: " + username);
-                            sendMessageToClient(new Message("You have been unregistered. Register to chat again.", "Server"));
-                        }
-                        case "/name" -> {
-                            sendMessageToClient(new Message("Your current username: " + username, "Server"));
-                        }
-                        default -> {
-                            // Filter the message content for regular messages
-                            String filteredBody = swearFilter.filter(body);
+                    }
+                    case "/register" -> {
+                        if (commandScanner.hasNext()) {
+                            String newUsername = commandScanner.next();
                             
-                            //Show message to clients
-                            if (!currentGroup.isEmpty()) { //If in a group, send the message to the group
-                                chatGroup.sendToGroup(currentGroup, new Message(filteredBody, username), this);
-                            } else { //If not in a group send the message to the global chat
-                                pool.broadcast(new Message(filteredBody, username), this);
+                            // Check username for profanity - reject instead of filtering
+                            if (!swearFilter.isClean(newUsername)) {
+                                // Send error about inappropriate username
+                                reply(Message.Status.REJECTED, "Username contains inappropriate content. Please choose another username.");
+                                commandScanner.close();
+                                return; // Skip to next message
                             }
-                            topicHandler.notifySubscribers(new Message(filteredBody, username), this);
+                            
+                            ServerHandler existingUser = pool.findClientByUsername(newUsername);
+                            
+                            if (existingUser != null && existingUser != this) {
+                                // Username already exists and it's not this user - send an error message
+                                reply(Message.Status.CONFLICT, "Username '" + newUsername + "' already exists. Please try another username.");
+                            } else if (existingUser == this) {
+                                // User is trying to register with their current username
+                                reply(Message.Status.OK, "You are already registered as: " + newUsername);
+                            } else {
+                                // Valid new username
+                                if (!isRegistered) {
+                                    pool.addClient(this);
+                                    isRegistered = true;
+                                } else {
+                                    // Announce re-registration
+                                    String announcement = "User " + username + " has re-registered as: " + newUsername;
+                                    pool.broadcast(new Message(announcement, "Server"), this);
+                                }
+                                String previousName = username;
+                                username = newUsername;
+                                pool.clientRenamed(previousName, username);
+                                chatGroup.clientRenamed(previousName, username);
+                                topicHandler.clientRenamed(previousName, username);
+                                reply(Message.Status.OK, "Successfully registered as: " + username);
+                            }
+                        } else {
+                            // No username provided with the /register command
+                            reply(Message.Status.INVALID, "Please specify a username: /register <username>");
+                        }
+                    }
+                    case "/unregister" -> {
+                        isRegistered = false;
+                        pool.removeClient(this);
+                        System.out.println("User unregistered: " + username);
+                        reply(Message.Status.OK, "You have been unregistered. Register to chat again.");
+                    }
+                    case "/stats" -> {
+                        // Flooded payloads come from other groups and chats, so only operators see them
+                        reply(Message.Status.OK, ServerStats.report() + (isOperator ? floodDetector.heavyHittersReport() : ""));
+                    }
+                    case "/operator" -> {
+                        String key = commandScanner.hasNextLine() ? commandScanner.nextLine().trim() : "";
+                        if (ServerConfig.OPERATOR_KEY.isEmpty()) {
+                            reply(Message.Status.UNAVAILABLE, "This server has no operators.");
+                        } else if (MessageDigest.isEqual(ServerConfig.OPERATOR_KEY.getBytes(StandardCharsets.UTF_8),
+                                key.getBytes(StandardCharsets.UTF_8))) {
+                            isOperator = true;
+                            reply(Message.Status.OK, "You are now an operator.");
+                        } else {
+                            reply(Message.Status.REJECTED, "Wrong operator key.");
                         }
                     }
+                    case "/name" -> {
+                        reply(Message.Status.OK, "Your current username: " + username);
+                    }
+                    default -> {
+                        if (relay(body, toCurrentChat())) {
+                            acknowledge();
+                        }
+                    }
+                }
+            } else {
+                acknowledge(); // a blank line, nothing to do
+            }
+        }
+    }
+
+    /**
+     * Moderates a line of chat and hands it to its route. The route is kept for any further
+     * parts of the line, so a long line is filtered and relayed one part at a time and never
+     * has to be held in full.
+     * @return false if the line was dropped as a flood
+     */
+    private boolean relay(String text, Consumer<String> route) {
+        continuation = route;
+        // Drop copies of a line that is being flooded before paying for filtering and fan-out
+        if (floodDetector.isFlood(text)) {
+            reply(Message.Status.REJECTED, "Message not delivered: the same text is being flooded.");
+            return false;
+        }
+        route.accept(swearFilter.filter(text));
+        return true;
+    }
+
+    /**
+     * Handles a CHUNK frame: the next part of the last line, sent the same way as the line
+     */
+    private void relayPart(String part) {
+        currentRequest = 0; // the line's request was answered with its first part
+        if (continuation == null) {
+            reply(Message.Status.INVALID, "Message part dropped: only chat and /send messages can be sent in parts.");
+            return;
+        }
+        relay(part, continuation);
+    }
+
+    private Consumer<String> toCurrentChat() {
+        return text -> {
+            //Show message to clients
+            // Resolve topic subscribers first so everyone gets the message exactly once
+            Message outgoing = new Message(text, username);
+            TopicMatches matches = topicHandler.match(outgoing, this);
+            if (!currentGroup.isEmpty()) { //If in a group, send the message to the group
+                chatGroup.sendToGroup(currentGroup, outgoing, this, matches);
+            } else { //If not in a group send the message to the global chat
+                pool.broadcast(outgoing, this, matches);
+            }
+        };
+    }
+
+    private Consumer<String> toGroup(String groupName) {
+        return text -> chatGroup.sendToGroup(groupName, new Message(text, username), this);
+    }
+
+    private Consumer<String> toUser(ServerHandler recipient) {
+        return text -> recipient.sendMessageToClient(new Message("PRIVATE MESSAGE | " + username + ": " + text, ""));
+    }
+
+    /**
+     * Applies the rate limit for the message's command class. A dropped request still gets its
+     * reply, so a client waiting on it is not left hanging.
+     * @return true if the message should be processed, false if it was dropped
+     * @throws IOException if the client kept flooding and its connection has been closed
+     */
+    private boolean admit(String body, long requestId) throws IOException {
+        switch (rateLimiter.check(RateLimiter.classify(body))) {
+            case ALLOW -> {
+                return true;
+            }
+            case WARN -> {
+                reply(requestId, Message.reply(Message.Status.RATE_LIMITED,
+                        "You are sending messages too fast. Slow down or you will be disconnected."));
+                return false;
+            }
+            case DROP -> {
+                if (requestId != 0) {
+                    reply(requestId, Message.reply(Message.Status.RATE_LIMITED, "Message dropped: you are sending too fast."));
                 }
+                return false;
+            }
+            default -> {
+                ServerStats.recordFloodDisconnect();
+                System.out.println("Disconnecting " + username + " for flooding");
+                reply(requestId, Message.reply(Message.Status.REJECTED, "You have been disconnected for flooding."));
+                // The strikes are the connection's, so every session on it goes
+                connection.close();
+                throw new IOException("disconnected for flooding");
             }
         }
     }
 
+    /**
+     * Queues a message for this client, tagged with its session. Replies from the server go in the control lane and
+     * are written ahead of chat traffic.
+     */
     public void sendMessageToClient(Message msg) {
-        try {
-            outStream.writeObject(msg);
-            outStream.flush();
-        } catch (IOException e) {
-            System.err.println("Error sending message to " + username + ": " + e.getMessage());
-            pool.removeClient(this); //Remove client to prevent future errors
-            //Optionally, close the socket and streams here.
+        boolean isControl = "Server".equals(msg.getUser()) || msg.getType() == Message.Type.FILE;
+        connection.send(sessionId == 0 ? msg : msg.withSession(sessionId), isControl);
+    }
+
+    /**
+     * Answers the request being handled with a status. A request the client tagged with an id
+     * gets the id back on its reply; untagged commands get a plain notice as before.
+     */
+    public void reply(Message.Status status, String text) {
+        reply(Message.reply(status, text));
+    }
+
+    public void reply(Message response) {
+        reply(currentRequest, response);
+    }
+
+    /**
+     * Answers a given request, for replies sent after the session has moved on to its next command
+     */
+    void reply(long requestId, Message response) {
+        sendMessageToClient(requestId == 0 ? response : response.withRequestId(requestId));
+    }
+
+    /**
+     * Confirms a request that has nothing else to say, such as a chat message that went out
+     */
+    private void acknowledge() {
+        if (currentRequest != 0) {
+            reply(Message.Status.OK, "");
+        }
+    }
+
+    /**
+     * Starts a file transfer: checks the target and size, then hands the client an upload token
+     * for the side channel. The recipients get their offers once the upload has completed.
+     */
+    private void offerFile(Scanner args) {
+        String target = args.hasNext() ? args.next() : "";
+        String uploadId = args.hasNext() ? args.next() : "";
+        long size = args.hasNextLong() ? args.nextLong() : -1;
+        String name = args.hasNextLine() ? FileTransfers.sanitizeName(args.nextLine().trim()) : "";
+        if (target.isEmpty() || uploadId.isEmpty() || size < 0 || name.isEmpty()) {
+            reply(Message.Status.INVALID, "Please specify a target and a file: /send file <user|group> <path>");
+            return;
+        }
+        boolean toGroup = chatGroup.groupExists(target);
+        if (!toGroup && pool.findClientByUsername(target) == null) {
+            reply(Message.Status.NOT_FOUND, "User or group " + target + " not found.");
+            return;
+        }
+        String token = fileTransfers.expectUpload(name, size, username, file -> {
+            if (toGroup) {
+                chatGroup.offerFile(target, file, this, fileTransfers);
+                return;
+            }
+            ServerHandler recipient = pool.findClientByUsername(target);
+            if (recipient != null) {
+                String downloadToken = fileTransfers.addDownload(file);
+                recipient.sendMessageToClient(Message.file("OFFER " + downloadToken + " " + file.getSize() + " " + file.getName(), username));
+                sendMessageToClient(new Message("File " + file.getName() + " sent to user: " + target, "Server"));
+            } else {
+                sendMessageToClient(new Message("File " + file.getName() + " not delivered: " + target + " has left.", "Server"));
+            }
+            fileTransfers.offered(file);
+        });
+        if (token == null && size > ServerConfig.MAX_FILE_BYTES) {
+            reply(Message.Status.TOO_LARGE, String.format("File %s is too large: the limit is %.1f MB.",
+                    name, ServerConfig.MAX_FILE_BYTES / (1024.0 * 1024)));
+            return;
+        }
+        if (token == null) {
+            reply(Message.Status.UNAVAILABLE, String.format("File %s not sent: you already have %d files or %.1f MB waiting"
+                    + " for their recipients.", name, ServerConfig.FILE_UPLOADS_PER_SENDER, ServerConfig.FILE_BYTES_PER_SENDER / (1024.0 * 1024)));
+            return;
         }
+        reply(Message.file("UPLOAD " + uploadId + " " + token, "Server"));
     }
 }
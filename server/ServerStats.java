@@ -0,0 +1,132 @@
+package server;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import shared.FilterCache;
+
+/**
+ * Server-wide counters, shown to clients with /stats
+ */
+public final class ServerStats {
+    private static final Map<RateLimiter.CommandClass, LongAdder> rateLimited = new EnumMap<>(RateLimiter.CommandClass.class);
+    private static final LongAdder floodDisconnects = new LongAdder();
+    private static final LongAdder floodSuppressed = new LongAdder();
+    private static final LongAdder outboundDropped = new LongAdder();
+    private static final LongAdder topicsExpired = new LongAdder();
+    private static final LongAdder topicsEvicted = new LongAdder();
+    private static final LongAdder connectionsShed = new LongAdder();
+    private static final LongAdder reapedDead = new LongAdder();
+    private static final LongAdder reapedIdle = new LongAdder();
+    private static final LongAdder filesUploaded = new LongAdder();
+    private static final LongAdder fileBytesUploaded = new LongAdder();
+    private static final LongAdder filesDownloaded = new LongAdder();
+    private static final LongAdder fileConnectionsDropped = new LongAdder();
+    private static final LongAdder oversizedFrames = new LongAdder();
+    private static final LongAdder linesCutOff = new LongAdder();
+    private static final LongAdder scheduledSent = new LongAdder();
+    private static final LongAdder scheduledMissed = new LongAdder();
+
+    static {
+        for (RateLimiter.CommandClass commandClass : RateLimiter.CommandClass.values()) {
+            rateLimited.put(commandClass, new LongAdder());
+        }
+    }
+
+    private ServerStats() {
+    }
+
+    public static void recordRateLimited(RateLimiter.CommandClass commandClass) {
+        rateLimited.get(commandClass).increment();
+    }
+
+    public static void recordFloodDisconnect() {
+        floodDisconnects.increment();
+    }
+
+    public static void recordFloodSuppressed() {
+        floodSuppressed.increment();
+    }
+
+    public static void recordOutboundDropped() {
+        outboundDropped.increment();
+    }
+
+    public static void recordTopicExpired() {
+        topicsExpired.increment();
+    }
+
+    public static void recordTopicEvicted() {
+        topicsEvicted.increment();
+    }
+
+    public static void recordConnectionShed() {
+        connectionsShed.increment();
+    }
+
+    public static void recordSessionsReaped(int dead, int idle) {
+        reapedDead.add(dead);
+        reapedIdle.add(idle);
+    }
+
+    public static void recordFileUploaded(long bytes) {
+        filesUploaded.increment();
+        fileBytesUploaded.add(bytes);
+    }
+
+    public static void recordFileDownloaded() {
+        filesDownloaded.increment();
+    }
+
+    /**
+     * A file connection closed because every file thread was taken or it went quiet
+     */
+    public static void recordFileConnectionDropped() {
+        fileConnectionsDropped.increment();
+    }
+
+    public static void recordOversizedFrame() {
+        oversizedFrames.increment();
+    }
+
+    public static void recordScheduledSent(int count) {
+        scheduledSent.add(count);
+    }
+
+    /**
+     * A scheduled message found too long past due at startup, dropped instead of sent late
+     */
+    public static void recordScheduledMissed(int count) {
+        scheduledMissed.add(count);
+    }
+
+    public static void recordLineCutOff() {
+        linesCutOff.increment();
+    }
+
+    /**
+     * Gets a readable summary of all counters
+     * @return String with one counter per line
+     */
+    public static String report() {
+        StringBuilder sb = new StringBuilder("Server stats:");
+        sb.append("\n- rate limited messages:");
+        for (Map.Entry<RateLimiter.CommandClass, LongAdder> entry : rateLimited.entrySet()) {
+            sb.append(' ').append(entry.getKey().name().toLowerCase()).append('=').append(entry.getValue().sum());
+        }
+        sb.append("\n- disconnected for flooding: ").append(floodDisconnects.sum());
+        sb.append("\n- duplicate floods suppressed: ").append(floodSuppressed.sum());
+        sb.append("\n- chat frames dropped for slow clients: ").append(outboundDropped.sum());
+        sb.append("\n- topics removed: idle=").append(topicsExpired.sum()).append(" over cap=").append(topicsEvicted.sum());
+        sb.append("\n- connections turned away while busy: ").append(connectionsShed.sum());
+        sb.append("\n- sessions reaped: unresponsive=").append(reapedDead.sum()).append(" idle=").append(reapedIdle.sum());
+        sb.append("\n- files: uploaded=").append(filesUploaded.sum()).append(" (").append(fileBytesUploaded.sum())
+                .append(" bytes) downloaded=").append(filesDownloaded.sum())
+                .append(" dropped=").append(fileConnectionsDropped.sum());
+        sb.append("\n- oversized frames rejected: ").append(oversizedFrames.sum())
+                .append(", long lines cut off: ").append(linesCutOff.sum());
+        sb.append("\n- scheduled messages: sent=").append(scheduledSent.sum()).append(" missed=").append(scheduledMissed.sum());
+        sb.append("\n- filter cache: ").append(FilterCache.shared().stats());
+        return sb.toString();
+    }
+}
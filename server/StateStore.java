@@ -0,0 +1,606 @@
+package server;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable copy of the server state that is worth keeping across a restart: group names and
+ * who is in which group, topic names, every user's topic subscriptions and scheduled messages. Users are
+ * re-attached to their group and subscriptions when they register again.
+ *
+ * Every change is appended to a journal. A background thread periodically writes a binary
+ * snapshot from a copy of the state taken under the lock, so the server is only blocked for the
+ * copy, not the write. Each snapshot starts a new journal generation; on startup the latest
+ * snapshot and the journals written after it are read through memory-mapped buffers.
+ *
+ * Files in the state directory:
+ * state.snap      - magic, version, first journal generation not included, then the state
+ * journal.N       - records of one op byte followed by two strings; SCHEDULED records are
+ *                   followed by an id, a due time, a kind byte and three strings instead, and
+ *                   KEYED_SCHEDULED records by the same and the owner key
+ */
+public class StateStore {
+    private static final int MAGIC = 0x43534E50; // "CSNP"
+    private static final int VERSION = 3; // 2 added scheduled messages, 3 their owner keys
+    private static final String SNAPSHOT_FILE = "state.snap";
+    private static final String JOURNAL_PREFIX = "journal.";
+
+    // Journal ops
+    private static final byte GROUP_CREATED = 1;
+    private static final byte GROUP_REMOVED = 2;
+    private static final byte MEMBER_JOINED = 3;
+    private static final byte MEMBER_LEFT = 4;
+    private static final byte MEMBER_RENAMED = 5;
+    private static final byte TOPIC_CREATED = 6;
+    private static final byte TOPIC_REMOVED = 7;
+    private static final byte SUBSCRIBED = 8;
+    private static final byte UNSUBSCRIBED = 9;
+    private static final byte SUBSCRIBER_RENAMED = 10;
+    private static final byte SCHEDULED = 11;
+    private static final byte UNSCHEDULED = 12; // sent or cancelled, the id in the first string
+    private static final byte KEYED_SCHEDULED = 13; // replaces SCHEDULED, which older journals still hold
+
+    private final Path dir;
+    // The state; usernames are keyed in lower case like the rest of the server
+    private static final Set<String> NO_MEMBERS = Set.of(); // shared until a group's first member joins
+
+    private final Map<String, Set<String>> membersByGroup = new LinkedHashMap<>();
+    private final Map<String, String> groupByUser = new HashMap<>();
+    private final Set<String> topics = new LinkedHashSet<>();
+    private final Map<String, Set<String>> subscriptionsByUser = new HashMap<>();
+    private final Map<Long, ScheduledMessage> schedules = new HashMap<>();
+    private long lastScheduleId = 0; // ids are never reused, even after the message is gone
+
+    private long generation;       // journal currently appended to
+    private DataOutputStream journal;
+    private boolean dirty = false; // changed since the last snapshot
+    private ScheduledExecutorService ownTimer; // null when running on a shared timer
+    private final List<ScheduledFuture<?>> tasks = new ArrayList<>();
+    private final Object snapshotLock = new Object(); // one snapshot written at a time
+    private byte[] scratch = new byte[0xFFFF]; // decoding buffer while loading, dropped afterwards
+
+    private StateStore(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Loads the latest snapshot and journals from a directory, creating it if needed
+     */
+    public static StateStore open(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        StateStore store = new StateStore(dir);
+        long next = store.loadSnapshot();
+        long last = next - 1;
+        for (long gen : store.journalGenerations()) {
+            if (gen >= next) {
+                store.replayJournal(dir.resolve(JOURNAL_PREFIX + gen));
+                store.dirty = true; // fold the replayed journals into the next snapshot
+            }
+            last = Math.max(last, gen);
+        }
+        store.generation = last + 1;
+        store.journal = store.openJournal(store.generation);
+        store.scratch = null;
+        return store;
+    }
+
+    /**
+     * Starts flushing the journal every second and snapshotting every chat.snapshotIntervalMs,
+     * with a final snapshot when the server shuts down
+     */
+    public void start() {
+        ownTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "state-snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+        start(ownTimer);
+    }
+
+    /**
+     * Same as start(), on a timer shared with other stores, so many small stores don't need a
+     * thread each
+     */
+    public synchronized void start(ScheduledExecutorService timer) {
+        tasks.add(timer.scheduleAtFixedRate(this::flush, 1, 1, TimeUnit.SECONDS));
+        tasks.add(timer.scheduleAtFixedRate(this::snapshotQuietly, ServerConfig.SNAPSHOT_INTERVAL_MS,
+                ServerConfig.SNAPSHOT_INTERVAL_MS, TimeUnit.MILLISECONDS));
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "state-shutdown"));
+    }
+
+    /**
+     * Writes a final snapshot and stops the background work
+     */
+    public void close() {
+        synchronized (this) {
+            tasks.forEach(task -> task.cancel(false));
+        }
+        if (ownTimer != null) {
+            ownTimer.shutdown();
+        }
+        snapshotQuietly();
+        synchronized (this) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                System.err.println("Error closing state journal: " + e.getMessage());
+            }
+        }
+    }
+
+    // ---- Groups ----
+
+    public synchronized List<String> groups() {
+        return new ArrayList<>(membersByGroup.keySet());
+    }
+
+    public synchronized String groupOf(String user) {
+        return groupByUser.get(user.toLowerCase());
+    }
+
+    public synchronized void groupCreated(String group) {
+        record(GROUP_CREATED, group, "");
+    }
+
+    public synchronized void groupRemoved(String group) {
+        record(GROUP_REMOVED, group, "");
+    }
+
+    public synchronized void memberJoined(String group, String user) {
+        record(MEMBER_JOINED, user.toLowerCase(), group);
+    }
+
+    public synchronized void memberLeft(String group, String user) {
+        record(MEMBER_LEFT, user.toLowerCase(), group);
+    }
+
+    public synchronized void memberRenamed(String oldName, String newName) {
+        record(MEMBER_RENAMED, oldName.toLowerCase(), newName.toLowerCase());
+    }
+
+    // ---- Topics ----
+
+    public synchronized List<String> topics() {
+        return new ArrayList<>(topics);
+    }
+
+    public synchronized List<String> subscriptionsOf(String user) {
+        Set<String> patterns = subscriptionsByUser.get(user.toLowerCase());
+        return patterns == null ? List.of() : new ArrayList<>(patterns);
+    }
+
+    public synchronized void topicCreated(String topic) {
+        record(TOPIC_CREATED, topic, "");
+    }
+
+    public synchronized void topicRemoved(String topic) {
+        record(TOPIC_REMOVED, topic, "");
+    }
+
+    public synchronized void subscribed(String user, String pattern) {
+        record(SUBSCRIBED, user.toLowerCase(), pattern);
+    }
+
+    public synchronized void unsubscribed(String user, String pattern) {
+        record(UNSUBSCRIBED, user.toLowerCase(), pattern);
+    }
+
+    public synchronized void subscriberRenamed(String oldName, String newName) {
+        record(SUBSCRIBER_RENAMED, oldName.toLowerCase(), newName.toLowerCase());
+    }
+
+    // ---- Scheduled messages ----
+
+    public synchronized List<ScheduledMessage> schedules() {
+        return new ArrayList<>(schedules.values());
+    }
+
+    /**
+     * @return The highest schedule id ever stored, so new ones can carry on from it
+     */
+    public synchronized long lastScheduleId() {
+        return lastScheduleId;
+    }
+
+    public synchronized void scheduled(ScheduledMessage message) {
+        byte[] entry;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(KEYED_SCHEDULED);
+            writeSchedule(out, message);
+            entry = bytes.toByteArray();
+        } catch (IOException e) {
+            System.err.println("Not storing scheduled message #" + message.id() + ": " + e.getMessage());
+            return;
+        }
+        if (addSchedule(message)) {
+            append(entry);
+        }
+    }
+
+    /**
+     * Forgets scheduled messages that were sent or cancelled, journaling them together
+     */
+    public synchronized void unscheduled(List<Long> ids) {
+        for (long id : ids) {
+            record(UNSCHEDULED, Long.toString(id), "");
+        }
+    }
+
+    /**
+     * Writes a snapshot if anything changed since the last one. The state is copied under the
+     * lock and a new journal generation started; the copy is then written and swapped in without
+     * holding the lock, and journals it covers are deleted.
+     */
+    public void snapshot() throws IOException {
+        synchronized (snapshotLock) {
+            writeSnapshot();
+        }
+    }
+
+    private void writeSnapshot() throws IOException {
+        Snapshot copy;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            copy = new Snapshot(generation + 1, new ArrayList<>(membersByGroup.keySet()), new HashMap<>(groupByUser),
+                    new ArrayList<>(topics), copySubscriptions(), lastScheduleId, new ArrayList<>(schedules.values()));
+            journal.close();
+            generation++;
+            journal = openJournal(generation);
+            dirty = false;
+        }
+
+        Path tmp = dir.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+            copy.write(out);
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp, dir.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        for (long gen : journalGenerations()) {
+            if (gen < copy.nextGeneration) {
+                Files.deleteIfExists(dir.resolve(JOURNAL_PREFIX + gen));
+            }
+        }
+    }
+
+    private void snapshotQuietly() {
+        try {
+            snapshot();
+        } catch (IOException e) {
+            System.err.println("Error writing state snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Pushes journaled changes to the file; anything not flushed is lost if the server crashes
+     */
+    public synchronized void flush() {
+        try {
+            journal.flush();
+        } catch (IOException e) {
+            System.err.println("Error flushing state journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Applies a change and journals it if it actually changed anything. The whole entry is encoded
+     * first, so a name too long to store changes nothing and never leaves half an entry in the journal.
+     */
+    private void record(byte op, String a, String b) {
+        byte[] entry;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(op);
+            writeString(out, a);
+            writeString(out, b);
+            entry = bytes.toByteArray();
+        } catch (IOException e) {
+            System.err.println("Not storing state change: " + e.getMessage());
+            return;
+        }
+        if (apply(op, a, b)) {
+            append(entry);
+        }
+    }
+
+    private void append(byte[] entry) {
+        dirty = true;
+        try {
+            journal.write(entry);
+        } catch (IOException e) {
+            System.err.println("Error writing state journal: " + e.getMessage());
+        }
+    }
+
+    private boolean apply(byte op, String a, String b) {
+        switch (op) {
+            case GROUP_CREATED:
+                return membersByGroup.putIfAbsent(a, NO_MEMBERS) == null;
+            case GROUP_REMOVED: {
+                Set<String> members = membersByGroup.remove(a);
+                if (members == null) {
+                    return false;
+                }
+                for (String user : members) {
+                    groupByUser.remove(user, a);
+                }
+                return true;
+            }
+            case MEMBER_JOINED: {
+                Set<String> members = membersByGroup.get(b);
+                if (members == null || members.contains(a)) {
+                    return false;
+                }
+                if (members == NO_MEMBERS) {
+                    members = new HashSet<>(4);
+                    membersByGroup.put(b, members);
+                }
+                members.add(a);
+                // A user is in one group at a time
+                String previous = groupByUser.put(a, b);
+                if (previous != null) {
+                    membersByGroup.get(previous).remove(a);
+                }
+                return true;
+            }
+            case MEMBER_LEFT:
+                if (!groupByUser.remove(a, b)) {
+                    return false;
+                }
+                membersByGroup.get(b).remove(a);
+                return true;
+            case MEMBER_RENAMED: {
+                String group = groupByUser.remove(a);
+                if (group == null) {
+                    return false;
+                }
+                apply(MEMBER_JOINED, b, group);
+                membersByGroup.get(group).remove(a);
+                return true;
+            }
+            case TOPIC_CREATED:
+                return topics.add(a);
+            case TOPIC_REMOVED:
+                return topics.remove(a);
+            case SUBSCRIBED:
+                return subscriptionsByUser.computeIfAbsent(a, u -> new HashSet<>()).add(b);
+            case UNSUBSCRIBED: {
+                Set<String> patterns = subscriptionsByUser.get(a);
+                if (patterns == null || !patterns.remove(b)) {
+                    return false;
+                }
+                if (patterns.isEmpty()) {
+                    subscriptionsByUser.remove(a);
+                }
+                return true;
+            }
+            case SUBSCRIBER_RENAMED: {
+                Set<String> patterns = subscriptionsByUser.remove(a);
+                if (patterns == null) {
+                    return false;
+                }
+                subscriptionsByUser.put(b, patterns);
+                return true;
+            }
+            case UNSCHEDULED:
+                return schedules.remove(Long.parseLong(a)) != null;
+            default:
+                throw new IllegalArgumentException("Unknown journal op " + op);
+        }
+    }
+
+    private boolean addSchedule(ScheduledMessage message) {
+        lastScheduleId = Math.max(lastScheduleId, message.id());
+        return schedules.putIfAbsent(message.id(), message) == null;
+    }
+
+    private Map<String, List<String>> copySubscriptions() {
+        Map<String, List<String>> copy = new HashMap<>(subscriptionsByUser.size() * 2);
+        for (Map.Entry<String, Set<String>> entry : subscriptionsByUser.entrySet()) {
+            copy.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+        }
+        return copy;
+    }
+
+    // ---- Loading ----
+
+    /**
+     * @return The first journal generation the snapshot does not include, 0 without a snapshot
+     */
+    private long loadSnapshot() throws IOException {
+        Path file = dir.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        ByteBuffer in = map(file);
+        if (in.remaining() < 16 || in.getInt() != MAGIC) {
+            throw new IOException("Unrecognised state snapshot " + file);
+        }
+        int version = in.getInt();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported state snapshot version " + version + " in " + file);
+        }
+        long next = in.getLong();
+        for (int i = in.getInt(); i > 0; i--) {
+            membersByGroup.put(readString(in), NO_MEMBERS);
+        }
+        for (int i = in.getInt(); i > 0; i--) {
+            apply(MEMBER_JOINED, readString(in), readString(in));
+        }
+        for (int i = in.getInt(); i > 0; i--) {
+            topics.add(readString(in));
+        }
+        for (int i = in.getInt(); i > 0; i--) {
+            String user = readString(in);
+            Set<String> patterns = new HashSet<>();
+            for (int j = in.getInt(); j > 0; j--) {
+                patterns.add(readString(in));
+            }
+            subscriptionsByUser.put(user, patterns);
+        }
+        if (version >= 2) {
+            lastScheduleId = in.getLong();
+            for (int i = in.getInt(); i > 0; i--) {
+                addSchedule(readSchedule(in, version >= 3));
+            }
+        }
+        return next;
+    }
+
+    private void replayJournal(Path file) throws IOException {
+        ByteBuffer in = map(file);
+        while (in.hasRemaining()) {
+            int start = in.position();
+            try {
+                byte op = in.get();
+                if (op == SCHEDULED || op == KEYED_SCHEDULED) {
+                    addSchedule(readSchedule(in, op == KEYED_SCHEDULED));
+                } else {
+                    apply(op, readString(in), readString(in));
+                }
+            } catch (BufferUnderflowException e) {
+                // The server stopped part way through a record; everything before it is intact
+                System.err.println("Ignoring torn record at " + start + " in " + file);
+                return;
+            }
+        }
+    }
+
+    private List<Long> journalGenerations() throws IOException {
+        List<Long> generations = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, JOURNAL_PREFIX + "*")) {
+            for (Path file : files) {
+                try {
+                    generations.add(Long.parseLong(file.getFileName().toString().substring(JOURNAL_PREFIX.length())));
+                } catch (NumberFormatException ignored) {
+                    // not one of ours
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    private DataOutputStream openJournal(long gen) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(dir.resolve(JOURNAL_PREFIX + gen).toFile(), true), 1 << 14));
+    }
+
+    private static ByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return buffer; // stays valid after the channel is closed
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IOException("Name too long to store: " + bytes.length + " bytes");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeSchedule(DataOutputStream out, ScheduledMessage message) throws IOException {
+        out.writeLong(message.id());
+        out.writeLong(message.dueAt());
+        out.writeByte(message.kind().ordinal());
+        writeString(out, message.owner());
+        writeString(out, message.target());
+        writeString(out, message.text());
+        writeString(out, message.ownerKey());
+    }
+
+    /**
+     * @param keyed false for records written before owner keys, whose messages get none
+     */
+    private ScheduledMessage readSchedule(ByteBuffer in, boolean keyed) {
+        long id = in.getLong();
+        long dueAt = in.getLong();
+        ScheduledMessage.Kind kind = ScheduledMessage.Kind.values()[in.get()];
+        String owner = readString(in);
+        String target = readString(in);
+        String text = readString(in);
+        return new ScheduledMessage(id, dueAt, owner, keyed ? readString(in) : "", kind, target, text);
+    }
+
+    private String readString(ByteBuffer in) {
+        int length = Short.toUnsignedInt(in.getShort());
+        in.get(scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Copy of the state taken under the lock, written out without it
+     */
+    private static final class Snapshot {
+        final long nextGeneration;
+        final List<String> groups;
+        final Map<String, String> groupByUser;
+        final List<String> topics;
+        final Map<String, List<String>> subscriptionsByUser;
+        final long lastScheduleId;
+        final List<ScheduledMessage> schedules; // records are immutable, so sharing them is safe
+
+        Snapshot(long nextGeneration, List<String> groups, Map<String, String> groupByUser,
+                 List<String> topics, Map<String, List<String>> subscriptionsByUser,
+                 long lastScheduleId, List<ScheduledMessage> schedules) {
+            this.nextGeneration = nextGeneration;
+            this.groups = groups;
+            this.groupByUser = groupByUser;
+            this.topics = topics;
+            this.subscriptionsByUser = subscriptionsByUser;
+            this.lastScheduleId = lastScheduleId;
+            this.schedules = schedules;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(nextGeneration);
+            out.writeInt(groups.size());
+            for (String group : groups) {
+                writeString(out, group);
+            }
+            out.writeInt(groupByUser.size());
+            for (Map.Entry<String, String> entry : groupByUser.entrySet()) {
+                writeString(out, entry.getKey());
+                writeString(out, entry.getValue());
+            }
+            out.writeInt(topics.size());
+            for (String topic : topics) {
+                writeString(out, topic);
+            }
+            out.writeInt(subscriptionsByUser.size());
+            for (Map.Entry<String, List<String>> entry : subscriptionsByUser.entrySet()) {
+                writeString(out, entry.getKey());
+                out.writeInt(entry.getValue().size());
+                for (String pattern : entry.getValue()) {
+                    writeString(out, pattern);
+                }
+            }
+            out.writeLong(lastScheduleId);
+            out.writeInt(schedules.size());
+            for (ScheduledMessage message : schedules) {
+                writeSchedule(out, message);
+            }
+        }
+    }
+}
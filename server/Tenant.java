@@ -0,0 +1,92 @@
+package server;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One independent chat space, such as a hotel property: its own users, groups, topics, scheduled
+ * messages, flood detector and stored state, so names and locks are never shared with another tenant. Threads
+ * are shared instead (see Tenants), and quotas on connections, groups, topics and queued
+ * messages keep a busy tenant from crowding out the others.
+ */
+public class Tenant {
+    private final String name;
+    private final StateStore store;
+    private final ConnectionPool pool;
+    private final ChatGroup chatGroup;
+    private final TopicHandler topicHandler;
+    private final FloodDetector floodDetector;
+    private final MessageScheduler scheduler;
+    private final Semaphore pipelineQuota; // this tenant's read messages waiting for the pipeline
+    private final int maxConnections;
+    private final AtomicInteger connections = new AtomicInteger();
+
+    Tenant(String name, StateStore store, ConnectionPool pool, ChatGroup chatGroup, TopicHandler topicHandler,
+           FloodDetector floodDetector, MessageScheduler scheduler, int pipelineQueue, int maxConnections) {
+        this.name = name;
+        this.store = store;
+        this.pool = pool;
+        this.chatGroup = chatGroup;
+        this.topicHandler = topicHandler;
+        this.floodDetector = floodDetector;
+        this.scheduler = scheduler;
+        this.pipelineQuota = new Semaphore(pipelineQueue);
+        this.maxConnections = maxConnections;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public ConnectionPool getPool() {
+        return pool;
+    }
+
+    public ChatGroup getChatGroup() {
+        return chatGroup;
+    }
+
+    public TopicHandler getTopicHandler() {
+        return topicHandler;
+    }
+
+    public FloodDetector getFloodDetector() {
+        return floodDetector;
+    }
+
+    public MessageScheduler getScheduler() {
+        return scheduler;
+    }
+
+    StateStore getStore() {
+        return store;
+    }
+
+    Semaphore getPipelineQuota() {
+        return pipelineQuota;
+    }
+
+    /**
+     * Counts a connection against the tenant's quota
+     * @return false if the tenant already has its maximum number of connections
+     */
+    boolean tryConnect() {
+        while (true) {
+            int current = connections.get();
+            if (current >= maxConnections) {
+                return false;
+            }
+            if (connections.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void disconnected() {
+        connections.decrementAndGet();
+    }
+
+    int getMaxConnections() {
+        return maxConnections;
+    }
+}
@@ -0,0 +1,114 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Registry of tenants. A tenant is loaded from its state directory the first time a client asks
+ * for it and stays loaded. Only tenants that are configured or provisioned are served, so clients
+ * cannot make the server create state for names it does not know. All tenants run on the same few thread pools: fan-out workers, group
+ * mailbox workers and one scheduler for every timer, so hundreds of small tenants cost a few
+ * objects and maps each rather than a dozen threads each.
+ */
+public class Tenants {
+    private static final Pattern NAME = Pattern.compile("[a-z0-9][a-z0-9_-]{0,63}");
+
+    private final Map<String, Tenant> tenants = new ConcurrentHashMap<>();
+    private final ExecutorService fanOutWorkers = FanOut.newWorkers(ServerConfig.FANOUT_THREADS);
+    private final ExecutorService groupWorkers;
+    private final ScheduledExecutorService timer;
+
+    public Tenants() {
+        AtomicInteger groupCounter = new AtomicInteger();
+        groupWorkers = Executors.newFixedThreadPool(ServerConfig.GROUP_THREADS, r -> {
+            Thread t = new Thread(r, "group-" + groupCounter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        AtomicInteger timerCounter = new AtomicInteger();
+        timer = Executors.newScheduledThreadPool(ServerConfig.TIMER_THREADS, r -> {
+            Thread t = new Thread(r, "timer-" + timerCounter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public static boolean isValidName(String name) {
+        return NAME.matcher(name).matches();
+    }
+
+    /**
+     * Tells whether a tenant may be served: the default one, one listed in -Dchat.tenants, or one
+     * provisioned by creating its state directory
+     * @param name A name accepted by isValidName
+     */
+    public boolean isServed(String name) {
+        return tenants.containsKey(name) || name.equals(ServerConfig.DEFAULT_TENANT)
+                || ServerConfig.TENANTS.contains(name) || Files.isDirectory(Paths.get(ServerConfig.STATE_DIR, "tenants", name));
+    }
+
+    public Tenant getDefault() throws IOException {
+        return get(ServerConfig.DEFAULT_TENANT);
+    }
+
+    /**
+     * Gets a tenant, loading it first if this is the first time it is used
+     * @param name A name accepted by isValidName and isServed
+     * @return The tenant, or null if MAX_TENANTS are loaded already
+     */
+    public Tenant get(String name) throws IOException {
+        Tenant tenant = tenants.get(name);
+        if (tenant != null) {
+            return tenant;
+        }
+        synchronized (this) {
+            tenant = tenants.get(name);
+            if (tenant == null) {
+                if (tenants.size() >= ServerConfig.MAX_TENANTS) {
+                    return null;
+                }
+                tenant = load(name);
+                tenants.put(name, tenant);
+            }
+            return tenant;
+        }
+    }
+
+    public int size() {
+        return tenants.size();
+    }
+
+    private Tenant load(String name) throws IOException {
+        long loadStart = System.nanoTime();
+        boolean isDefault = name.equals(ServerConfig.DEFAULT_TENANT);
+        Path dir = isDefault ? Paths.get(ServerConfig.STATE_DIR) : Paths.get(ServerConfig.STATE_DIR, "tenants", name);
+        StateStore store = StateStore.open(dir);
+        FanOut fanOut = new FanOut(fanOutWorkers, ServerConfig.FANOUT_THREADS, ServerConfig.FANOUT_THRESHOLD);
+        ConnectionPool pool = new ConnectionPool(fanOut, groupWorkers, timer);
+        ChatGroup chatGroup = new ChatGroup(fanOut, store, groupWorkers, timer,
+                ServerConfig.tenantQuota(name, "maxGroups", isDefault ? Integer.MAX_VALUE : ServerConfig.TENANT_MAX_GROUPS));
+        TopicHandler topicHandler = new TopicHandler(store, timer,
+                ServerConfig.tenantQuota(name, "topicCap", isDefault ? ServerConfig.TOPIC_CAP : ServerConfig.TENANT_TOPIC_CAP));
+        int sketchWidth = ServerConfig.tenantQuota(name, "floodSketchWidth",
+                isDefault ? ServerConfig.FLOOD_SKETCH_WIDTH : ServerConfig.TENANT_FLOOD_SKETCH_WIDTH);
+        FloodDetector floodDetector = new FloodDetector(sketchWidth, ServerConfig.FLOOD_WINDOW_MS,
+                ServerConfig.FLOOD_THRESHOLD, ServerConfig.FLOOD_MIN_LENGTH);
+        MessageScheduler scheduler = new MessageScheduler(pool, chatGroup, store, floodDetector, groupWorkers, timer,
+                ServerConfig.tenantQuota(name, "maxSchedules", isDefault ? ServerConfig.SCHEDULE_CAP : ServerConfig.TENANT_MAX_SCHEDULES));
+        store.start(timer);
+        System.out.println("Loaded tenant " + name + ": " + store.groups().size() + " groups, " + store.topics().size()
+                + " topics and " + scheduler.size() + " scheduled messages in " + (System.nanoTime() - loadStart) / 1_000_000 + " ms");
+        return new Tenant(name, store, pool, chatGroup, topicHandler, floodDetector, scheduler,
+                ServerConfig.tenantQuota(name, "pipelineQueue", isDefault ? ServerConfig.PIPELINE_QUEUE : ServerConfig.TENANT_PIPELINE_QUEUE),
+                ServerConfig.tenantQuota(name, "maxConnections", isDefault ? ServerConfig.MAX_CONNECTIONS : ServerConfig.TENANT_MAX_CONNECTIONS));
+    }
+}
@@ -0,0 +1,193 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timing wheel for large numbers of coarse timeouts, from seconds to months away.
+ * Level 0 has one slot per tick; each level above has slots as wide as a full turn of the level
+ * below, and a slot's timeouts are moved down a level when the wheel reaches it. Scheduling
+ * and cancelling are O(1), and a timeout is moved at most once per level, so millions of pending
+ * timeouts cost nothing until they are nearly due. Timeouts fire up to one tick late.
+ *
+ * Expired items are handed to the callback in one batch per tick, outside the wheel's lock,
+ * so the callback may take its own locks and schedule again.
+ */
+public class TimingWheel<T> {
+    /**
+     * Handle for a scheduled item, used to cancel it
+     */
+    public static final class Timeout<T> {
+        private final T item;
+        private final long deadline; // tick it is due on
+        private int level;
+        private int slot;
+        private Timeout<T> prev;
+        private Timeout<T> next;
+        private boolean cancelled;
+
+        private Timeout(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+
+        public T getItem() {
+            return item;
+        }
+    }
+
+    private final long tickMs;
+    private final int bits;  // log2 of the slots per level
+    private final int mask;
+    private final Timeout<T>[][] levels; // each slot is a doubly linked list for O(1) removal; upper levels made on first use
+    private final Consumer<List<T>> onExpire;
+    private long now = 0;    // ticks since the wheel was made
+    private int pending = 0;
+
+    /**
+     * @param slots Slots per level, a power of two
+     * @param onExpire Gets everything that expired in one tick as a single batch
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tickMs, int slots, Consumer<List<T>> onExpire) {
+        if (slots < 2 || Integer.bitCount(slots) != 1) {
+            throw new IllegalArgumentException("Slots must be a power of two: " + slots);
+        }
+        this.tickMs = tickMs;
+        this.bits = Integer.numberOfTrailingZeros(slots);
+        this.mask = slots - 1;
+        this.levels = (Timeout<T>[][]) new Timeout<?>[(Long.SIZE + bits - 1) / bits][];
+        this.onExpire = onExpire;
+    }
+
+    /**
+     * Advances the wheel one tick every tickMs on the given timer
+     */
+    public void start(ScheduledExecutorService timer) {
+        timer.scheduleAtFixedRate(() -> {
+            try {
+                tick();
+            } catch (RuntimeException e) {
+                System.err.println("Timing wheel callback failed: " + e.getMessage());
+            }
+        }, tickMs, tickMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Schedules an item to expire after roughly the given delay
+     */
+    public synchronized Timeout<T> schedule(T item, long delayMs) {
+        long ticks = Math.max(1, (Math.min(delayMs, Long.MAX_VALUE / 2) + tickMs - 1) / tickMs);
+        Timeout<T> timeout = new Timeout<>(item, now + ticks);
+        place(timeout);
+        pending++;
+        return timeout;
+    }
+
+    /**
+     * @return true if the timeout was still pending
+     */
+    public synchronized boolean cancel(Timeout<T> timeout) {
+        if (timeout == null || timeout.cancelled) {
+            return false;
+        }
+        timeout.cancelled = true;
+        unlink(timeout);
+        pending--;
+        return true;
+    }
+
+    /**
+     * @return true if the timeout has neither fired nor been cancelled
+     */
+    public synchronized boolean isPending(Timeout<T> timeout) {
+        return !timeout.cancelled;
+    }
+
+    public synchronized int size() {
+        return pending;
+    }
+
+    /**
+     * Moves to the next tick: slots of the upper levels that start now are moved down, then
+     * everything in the level 0 slot fires
+     */
+    public void tick() {
+        List<T> expired = new ArrayList<>();
+        synchronized (this) {
+            now++;
+            // A level's slot starts when the tick count is a multiple of its width; cascade top down
+            // so a timeout moved from level 2 to level 1's current slot is moved again straight away
+            int top = 0;
+            while (top + 1 < levels.length && (now & ((1L << (top + 1) * bits) - 1)) == 0) {
+                top++;
+            }
+            for (int level = top; level > 0; level--) {
+                if (levels[level] == null) {
+                    continue;
+                }
+                int slot = (int) (now >>> level * bits) & mask;
+                Timeout<T> timeout = levels[level][slot];
+                levels[level][slot] = null;
+                while (timeout != null) {
+                    Timeout<T> next = timeout.next;
+                    place(timeout);
+                    timeout = next;
+                }
+            }
+            int slot = (int) now & mask;
+            Timeout<T> timeout = levels[0] == null ? null : levels[0][slot];
+            while (timeout != null) {
+                Timeout<T> next = timeout.next;
+                timeout.cancelled = true; // fired, cannot be cancelled any more
+                unlink(timeout);
+                pending--;
+                expired.add(timeout.item);
+                timeout = next;
+            }
+        }
+        if (!expired.isEmpty()) {
+            onExpire.accept(expired);
+        }
+    }
+
+    /**
+     * Links a timeout into the lowest level whose current turn contains its deadline, so its
+     * slot is reached before the level wraps around
+     */
+    @SuppressWarnings("unchecked")
+    private void place(Timeout<T> timeout) {
+        int level = 0;
+        while (level + 1 < levels.length && (timeout.deadline >>> (level + 1) * bits) != (now >>> (level + 1) * bits)) {
+            level++;
+        }
+        if (levels[level] == null) {
+            levels[level] = (Timeout<T>[]) new Timeout<?>[mask + 1];
+        }
+        timeout.level = level;
+        timeout.slot = (int) (timeout.deadline >>> level * bits) & mask;
+        Timeout<T> head = levels[level][timeout.slot];
+        timeout.prev = null;
+        timeout.next = head;
+        if (head != null) {
+            head.prev = timeout;
+        }
+        levels[level][timeout.slot] = timeout;
+    }
+
+    private void unlink(Timeout<T> timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            levels[timeout.level][timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+    }
+}
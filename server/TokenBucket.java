@@ -0,0 +1,49 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket, implemented as a generic cell rate algorithm: instead of counting
+ * tokens we keep the theoretical time at which the bucket would be full again, so taking a
+ * token is a single compare-and-set on one AtomicLong.
+ */
+public class TokenBucket {
+    // Slower rates are treated as one token an hour, which keeps the arithmetic far from overflowing
+    private static final long MAX_INTERVAL_NANOS = 3_600_000_000_000L;
+
+    private final long intervalNanos;       // time to earn one token
+    private final long burstToleranceNanos; // how far ahead of "now" the bucket may be drawn
+    private final AtomicLong theoreticalArrival;
+
+    /**
+     * @param perSecond Sustained rate in tokens per second
+     * @param burst     Max tokens that can be taken at once after being idle
+     * @throws IllegalArgumentException if the rate is not a positive number or the burst is under 1
+     */
+    public TokenBucket(double perSecond, int burst) {
+        if (!(perSecond > 0) || Double.isInfinite(perSecond) || burst < 1) {
+            throw new IllegalArgumentException("Invalid token bucket: " + perSecond + " per second, burst " + burst);
+        }
+        this.intervalNanos = (long) Math.min(1_000_000_000d / perSecond, MAX_INTERVAL_NANOS);
+        this.burstToleranceNanos = (long) Math.min((double) intervalNanos * (burst - 1), Long.MAX_VALUE / 4);
+        this.theoreticalArrival = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes a token if one is available
+     * @return true if allowed, false if the caller is over the rate
+     */
+    public boolean tryAcquire() {
+        long now = System.nanoTime();
+        while (true) {
+            long tat = theoreticalArrival.get();
+            long start = Math.max(tat, now);
+            if (start - now > burstToleranceNanos) {
+                return false;
+            }
+            if (theoreticalArrival.compareAndSet(tat, start + intervalNanos)) {
+                return true;
+            }
+        }
+    }
+}
@@ -1,111 +1,313 @@
 package server;
 
 import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
 import shared.Message;
-import shared.SwearFilter;
 
 public class TopicHandler {
-    private final Set<String> topics = new HashSet<>();
-    private final Map<String, Set<ServerHandler>> subscriptions = new HashMap<>();
-    private final SwearFilter swearFilter = new SwearFilter();
+    /**
+     * Activity of one topic. Only exact subscriptions count: a pattern such as sports.#
+     * does not keep an individual topic alive.
+     */
+    private static final class TopicState {
+        final String name;
+        long lastActive;
+        int subscribers;
+        TimingWheel.Timeout<TopicState> expiry; // null while subscribed or once evicted
 
-    public synchronized String createTopic(String topic) {
-        if (topics.add(topic.toLowerCase())) {
-            subscriptions.put(topic.toLowerCase(), new HashSet<>());
-            return "Topic: " + topic + " created";
+        TopicState(String name, long now) {
+            this.name = name;
+            this.lastActive = now;
         }
-        return "Topic: " + topic + " already exists ";
+    }
+
+    // Access ordered, so the eldest entry is the least recently used topic
+    private final Map<String, TopicState> topics = new LinkedHashMap<>(16, 0.75f, true);
+    private final TopicTrie<ServerHandler> subscriptions = new TopicTrie<>();
+    private final Map<ServerHandler, Set<String>> patternsByClient = new HashMap<>();
+    private final TimingWheel<TopicState> sweeper = new TimingWheel<>(1000, 512, expired -> expired.forEach(this::expire));
+    private final StateStore store;
+    private final int topicCap;
+
+    /**
+     * @param timer Advances the idle sweeper, may be shared with other handlers
+     * @param topicCap Past this many topics the least recently used unsubscribed one is evicted
+     */
+    public TopicHandler(StateStore store, ScheduledExecutorService timer, int topicCap) {
+        this.store = store;
+        this.topicCap = topicCap;
+        // Topics from before a restart start a fresh idle period
+        long now = System.currentTimeMillis();
+        for (String name : store.topics()) {
+            TopicState topic = new TopicState(name, now);
+            topics.put(name, topic);
+            topic.expiry = sweeper.schedule(topic, ServerConfig.TOPIC_IDLE_MS);
+        }
+        sweeper.start(timer);
+    }
+
+    public synchronized Message createTopic(String topic) {
+        if (!TopicTrie.isValid(topic, false)) {
+            return Message.reply(Message.Status.INVALID, "Invalid topic name: use dot separated levels such as sports.football.uk");
+        }
+        String name = topic.toLowerCase();
+        if (topics.containsKey(name)) {
+            topics.get(name).lastActive = System.currentTimeMillis();
+            return Message.reply(Message.Status.CONFLICT, "Topic: " + topic + " already exists ");
+        }
+        if (topics.size() >= topicCap && !evictLeastRecentlyUsed()) {
+            return Message.reply(Message.Status.UNAVAILABLE, "Topic limit reached, " + topic + " was not created");
+        }
+        TopicState state = new TopicState(name, System.currentTimeMillis());
+        topics.put(name, state);
+        state.expiry = sweeper.schedule(state, ServerConfig.TOPIC_IDLE_MS);
+        store.topicCreated(name);
+        return Message.reply(Message.Status.OK, "Topic: " + topic + " created");
     }
     
-    public synchronized String subscribe(String topic, ServerHandler handler) {
+    /**
+     * Subscribes to a topic, or to a pattern where '*' stands for one level and '#' for any number
+     * of levels. Patterns may cover topics that do not exist yet; plain names must exist.
+     */
+    public synchronized Message subscribe(String topic, ServerHandler handler) {
         topic = topic.toLowerCase();
-        if(!topics.contains(topic)) {
-            return "Topic " + topic + " does not exist ";
+        if (!TopicTrie.isValid(topic, true)) {
+            return Message.reply(Message.Status.INVALID, "Invalid topic pattern: use levels such as sports.football, sports.* or sports.#");
+        }
+        boolean pattern = TopicTrie.hasWildcard(topic);
+        TopicState state = topics.get(topic);
+        if (!pattern && state == null) {
+            return Message.reply(Message.Status.NOT_FOUND, "Topic " + topic + " does not exist ");
+        }
+        if (subscriptions.subscribe(topic, handler)) {
+            patternsByClient.computeIfAbsent(handler, h -> new HashSet<>()).add(topic);
+            store.subscribed(handler.getUsername(), topic);
+            if (state != null) {
+                state.subscribers++;
+                // Subscribed topics are never evicted, no need to keep a timer for them
+                sweeper.cancel(state.expiry);
+                state.expiry = null;
+            }
         }
-        subscriptions.get(topic).add(handler);
-        return "Topic " + topic + " subscribed";
+        return Message.reply(Message.Status.OK, (pattern ? "Topic pattern " : "Topic ") + topic + " subscribed");
     }
 
-    public synchronized String unsubscribe(String topic, ServerHandler handler) {
+    public synchronized Message unsubscribe(String topic, ServerHandler handler) {
         topic = topic.toLowerCase();
-        if(!topics.contains(topic)) {
-            return "Topic " + topic + " does not exist ";
+        if (!removeSubscription(topic, handler, true)) {
+            return Message.reply(Message.Status.CONFLICT, "Not subscribed to " + topic);
+        }
+        Set<String> patterns = patternsByClient.get(handler);
+        patterns.remove(topic);
+        if (patterns.isEmpty()) {
+            patternsByClient.remove(handler);
+        }
+        return Message.reply(Message.Status.OK, "Topic " + topic + " unsubscribed");
+    }
+
+    /**
+     * Gives a newly registered client back the subscriptions it had before the server restarted
+     */
+    public synchronized void restoreSubscriptions(ServerHandler handler) {
+        List<String> restored = store.subscriptionsOf(handler.getUsername());
+        if (restored.isEmpty()) {
+            return;
+        }
+        for (String topic : restored) {
+            // The topic may have been evicted while nobody was subscribed to it
+            if (!TopicTrie.hasWildcard(topic) && !topics.containsKey(topic)) {
+                createTopic(topic);
+            }
+            subscribe(topic, handler);
+        }
+        handler.sendMessageToClient(new Message("Restored topic subscriptions: " + restored, "Server"));
+    }
+
+    public synchronized void clientRenamed(String oldName, String newName) {
+        if (oldName != null) {
+            store.subscriberRenamed(oldName, newName);
+        }
+    }
+
+    /**
+     * Drops every subscription of a client that has gone away. The stored subscriptions are
+     * kept, so the user gets them back the next time they register.
+     */
+    public synchronized void unsubscribeAll(ServerHandler handler) {
+        Set<String> patterns = patternsByClient.remove(handler);
+        if (patterns != null) {
+            for (String topic : patterns) {
+                removeSubscription(topic, handler, false);
+            }
         }
-        subscriptions.get(topic).remove(handler);
-        return "Topic " + topic + " unsubscribed";
     }
 
     public synchronized String listTopics() {
         if (topics.isEmpty()) {
             return "No topic subscribed";
         }
-        return "List of topics: " + topics;
+        return "List of topics: " + topics.keySet();
     }
 
-    public synchronized void notifySubscribers(Message message, ServerHandler sender) {
+    /**
+     * Creates topics for the message's hashtags and works out which subscribers it reaches.
+     * Nothing is sent to subscribers here; routing delivers one frame per recipient.
+     * @return Each matching subscriber with the list of topics the message matched for them
+     */
+    public synchronized TopicMatches match(Message message, ServerHandler sender) {
+        // The text was filtered when it was relayed, so hashtags made of banned words are already masked
+        Set<String> hashtags = new LinkedHashSet<>();
+        Set<String> published = new LinkedHashSet<>();
+        scanWords(message.getMessageBody(), hashtags, published);
+
         //create topics and notify the sender if a new topic is created
-        Set<String> hashtags = extractHashtags(message.getMessageBody());
         for (String tag : hashtags) {
             //Create topic and get the response message
-            String topicResponse = createTopic(tag);
+            Message topicResponse = createTopic(tag);
             //If the topic was created, send the confirmation
-            if (topicResponse.contains("created")) {
-                sender.sendMessageToClient(new Message(topicResponse, "Server"));
+            if (topicResponse.getStatus() == Message.Status.OK) {
+                sender.sendMessageToClient(topicResponse);
             }
         }
 
-        // Filter the message before broadcasting to subscribers
-        String filteredMessage = swearFilter.filter(message.getMessageBody());
-        
-        //Check each topic for a match in the message text
-        String messageTextLower = filteredMessage.toLowerCase();
-        for (Map.Entry<String, Set<ServerHandler>> entry : subscriptions.entrySet()) {
-            String topic = entry.getKey();  // stored as lower case
-            //Check if the message text contains the topic
-            if (messageTextLower.contains(topic)) {
-                String formatted = topic.toUpperCase() + " | " + message.getUser() + ": " + filteredMessage;
-                for (ServerHandler subscriber : entry.getValue()) {
-                    subscriber.sendMessageToClient(new Message(formatted, ""));
+        //Look each word of the message up in the subscription trie, collecting the patterns per subscriber
+        long now = System.currentTimeMillis();
+        Map<ServerHandler, List<String>> topicsBySubscriber = new HashMap<>();
+        for (String topic : published) {
+            TopicState state = topics.get(topic);
+            if (state != null) {
+                state.lastActive = now;
+            }
+            subscriptions.match(topic, (subscriber, pattern) -> {
+                List<String> matched = topicsBySubscriber.computeIfAbsent(subscriber, s -> new ArrayList<>());
+                if (!matched.contains(pattern)) {
+                    matched.add(pattern);
                 }
+            });
+        }
+        return topicsBySubscriber.isEmpty() ? TopicMatches.NONE : new TopicMatches(topicsBySubscriber);
+    }
+
+    /**
+     * @param forget true to also remove the subscription from the store, false if only the session went away
+     */
+    private boolean removeSubscription(String topic, ServerHandler handler, boolean forget) {
+        if (!subscriptions.unsubscribe(topic, handler)) {
+            return false;
+        }
+        if (forget) {
+            store.unsubscribed(handler.getUsername(), topic);
+        }
+        TopicState state = topics.get(topic);
+        if (state != null && --state.subscribers == 0) {
+            state.lastActive = System.currentTimeMillis();
+            state.expiry = sweeper.schedule(state, ServerConfig.TOPIC_IDLE_MS);
+        }
+        return true;
+    }
+
+    /**
+     * Called by the sweeper when a topic's idle timer runs out. Activity doesn't move the timer,
+     * so a topic that was used since it was armed is simply checked again later.
+     */
+    private synchronized void expire(TopicState state) {
+        if (state.expiry == null || sweeper.isPending(state.expiry)) {
+            return; // subscribed, evicted or re-armed since this timer was set
+        }
+        long idleFor = System.currentTimeMillis() - state.lastActive;
+        if (idleFor < ServerConfig.TOPIC_IDLE_MS) {
+            state.expiry = sweeper.schedule(state, ServerConfig.TOPIC_IDLE_MS - idleFor);
+            return;
+        }
+        topics.remove(state.name);
+        state.expiry = null;
+        store.topicRemoved(state.name);
+        ServerStats.recordTopicExpired();
+    }
+
+    /**
+     * Makes room under the topic cap by removing the least recently used unsubscribed topic
+     * @return false if every topic has subscribers
+     */
+    private boolean evictLeastRecentlyUsed() {
+        Iterator<TopicState> it = topics.values().iterator();
+        while (it.hasNext()) {
+            TopicState state = it.next();
+            if (state.subscribers == 0) {
+                it.remove();
+                sweeper.cancel(state.expiry);
+                state.expiry = null;
+                store.topicRemoved(state.name);
+                ServerStats.recordTopicEvicted();
+                return true;
             }
         }
+        return false;
     }
 
-    private Set<String> extractHashtags(String messageBody) {
-        Set<String> hashtags = new HashSet<>();
-        for (String word : messageBody.split("\\s+")) {
-            if (word.startsWith("#") && word.length() > 1) {
-                hashtags.add(word.substring(1).toLowerCase());
+    /**
+     * Single pass over the message collecting the words that could name a topic and the hashtags
+     * among them. Words are lower cased with surrounding punctuation removed, so
+     * "#sports.football!" is the hashtag sports.football.
+     */
+    private static void scanWords(String text, Set<String> hashtags, Set<String> words) {
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && Character.isWhitespace(text.charAt(i))) {
+                i++;
+            }
+            boolean hashtag = i < length && text.charAt(i) == '#';
+            // Find the first and last letter or digit of the word
+            int start = -1;
+            int end = -1;
+            while (i < length && !Character.isWhitespace(text.charAt(i))) {
+                if (Character.isLetterOrDigit(text.charAt(i))) {
+                    if (start < 0) {
+                        start = i;
+                    }
+                    end = i + 1;
+                }
+                i++;
+            }
+            if (start < 0) {
+                continue;
+            }
+            String word = text.substring(start, end).toLowerCase();
+            if (TopicTrie.isValid(word, false)) {
+                words.add(word);
+                if (hashtag) {
+                    hashtags.add(word);
+                }
             }
         }
-        return hashtags;
     }
     
-    public synchronized String processTopicCommand(String subCommand, String args, ServerHandler handler) {
+    public synchronized Message processTopicCommand(String subCommand, String args, ServerHandler handler) {
         switch (subCommand) {
             case "create" -> {
                 if (args == null || args.isEmpty()) {
-                    return "Please specify a topic name: /topic create <topicName>";
+                    return Message.reply(Message.Status.INVALID, "Please specify a topic name: /topic create <topicName>");
                 }
                 return createTopic(args);
             }
             case "subscribe" -> {
                 if (args == null || args.isEmpty()) {
-                    return "Please specify a topic name: /topic subscribe <topicName>";
+                    return Message.reply(Message.Status.INVALID, "Please specify a topic name: /topic subscribe <topicName>");
                 }
                 return subscribe(args, handler);
             }
             case "unsubscribe" -> {
                 if (args == null || args.isEmpty()) {
-                    return "Please specify a topic name: /topic unsubscribe <topicName>";
+                    return Message.reply(Message.Status.INVALID, "Please specify a topic name: /topic unsubscribe <topicName>");
                 }
                 return unsubscribe(args, handler);
             }
             case "list" -> {
-                return listTopics();
+                return Message.reply(Message.Status.OK, listTopics());
             }
             default -> {
-                return "Invalid topic command. Available options: create, subscribe, unsubscribe, list";
+                return Message.reply(Message.Status.INVALID, "Invalid topic command. Available options: create, subscribe, unsubscribe, list");
             }
         }
     }
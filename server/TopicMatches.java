@@ -0,0 +1,60 @@
+package server;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import shared.Message;
+
+/**
+ * Which subscribers an inbound message reaches through topics, and which topics each of them
+ * matched. Routing uses it so every recipient gets the message exactly once: recipients who
+ * already get it through the global chat or their group get that frame tagged with their
+ * topics, and only subscribers outside that audience get a separate topic frame.
+ */
+public class TopicMatches {
+    public static final TopicMatches NONE = new TopicMatches(Map.of());
+
+    private final Map<ServerHandler, List<String>> topicsBySubscriber;
+
+    public TopicMatches(Map<ServerHandler, List<String>> topicsBySubscriber) {
+        this.topicsBySubscriber = topicsBySubscriber;
+    }
+
+    /**
+     * Gets the frame for one recipient, tagged with their matched topics if they have any
+     */
+    public Message frameFor(ServerHandler recipient, Message frame) {
+        List<String> topics = topicsBySubscriber.get(recipient);
+        return topics == null ? frame : frame.withTopics(topics);
+    }
+
+    /**
+     * @return The topics a recipient matched, or null if it matched none
+     */
+    public List<String> topicsOf(ServerHandler recipient) {
+        return topicsBySubscriber.get(recipient);
+    }
+
+    /**
+     * @return Every recipient that matched at least one topic
+     */
+    public Set<ServerHandler> subscribers() {
+        return topicsBySubscriber.keySet();
+    }
+
+    /**
+     * Sends one topic frame to every matched subscriber outside the message's main audience
+     * @param inAudience Tells whether a subscriber already received the message
+     */
+    public void deliverRemaining(Message msg, ServerHandler sender, Predicate<ServerHandler> inAudience) {
+        for (Map.Entry<ServerHandler, List<String>> entry : topicsBySubscriber.entrySet()) {
+            ServerHandler subscriber = entry.getKey();
+            if (subscriber != sender && !inAudience.test(subscriber)) {
+                // The client shows the matched topics in front of the frame
+                String formatted = "TOPIC | " + msg.getUser() + ": " + msg.getMessageBody();
+                subscriber.sendMessageToClient(new Message(formatted, "").withTopics(entry.getValue()));
+            }
+        }
+    }
+}
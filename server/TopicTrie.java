@@ -0,0 +1,203 @@
+package server;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * Subscription trie for hierarchical topics such as sports.football.uk.
+ * Each level of a subscription pattern is one edge, so the subscribers of a published topic
+ * are found by walking its levels rather than scanning every subscription.
+ *
+ * Patterns may use two wildcards, each standing for a whole level:
+ * '*' matches exactly one level and '#' matches zero or more levels,
+ * so sports.* matches sports.football and sports.# also matches sports and sports.football.uk.
+ * Each '#' node is tried at most once per level of the topic being matched, so patterns with
+ * several '#' levels cost polynomial rather than exponential time, and names and patterns are
+ * capped at TOPIC_MAX_LEVELS levels.
+ *
+ * Not thread safe; callers synchronize.
+ */
+public class TopicTrie<S> {
+    public static final String SEPARATOR = ".";
+    public static final String ONE_LEVEL = "*";
+    public static final String ANY_LEVELS = "#";
+
+    private static final class Node<S> {
+        final Map<String, Node<S>> children = new HashMap<>(4);
+        String pattern;       // full pattern ending at this node, set once it has subscribers
+        Set<S> subscribers;   // allocated on first subscription, most nodes never get one
+        // '#' nodes only: the levels this node has been matched from during match number expandedIn
+        int expandedIn;
+        BitSet expandedLevels;
+    }
+
+    private final Node<S> root = new Node<>();
+    private int subscriptionCount = 0;
+    private int matchCount = 0;
+
+    /**
+     * Checks a name or pattern: at most TOPIC_MAX_LEVELS non-empty levels separated by dots,
+     * no whitespace, and wildcards only as a whole level when allowed
+     */
+    public static boolean isValid(String pattern, boolean allowWildcards) {
+        if (pattern == null || pattern.isEmpty()) {
+            return false;
+        }
+        // Count before splitting, so a huge dotted word is turned away without building its levels
+        int levels = 1;
+        for (int i = 0; i < pattern.length(); i++) {
+            if (pattern.charAt(i) == '.' && ++levels > ServerConfig.TOPIC_MAX_LEVELS) {
+                return false;
+            }
+        }
+        for (String level : split(pattern)) {
+            if (level.isEmpty()) {
+                return false;
+            }
+            if (level.equals(ONE_LEVEL) || level.equals(ANY_LEVELS)) {
+                if (!allowWildcards) {
+                    return false;
+                }
+                continue;
+            }
+            for (int i = 0; i < level.length(); i++) {
+                char c = level.charAt(i);
+                if (Character.isWhitespace(c) || c == '*' || c == '#') {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    public static boolean hasWildcard(String pattern) {
+        for (String level : split(pattern)) {
+            if (level.equals(ONE_LEVEL) || level.equals(ANY_LEVELS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the subscriber was not already subscribed to this pattern
+     */
+    public boolean subscribe(String pattern, S subscriber) {
+        Node<S> node = root;
+        for (String level : split(pattern)) {
+            node = node.children.computeIfAbsent(level, l -> new Node<>());
+        }
+        if (node.subscribers == null) {
+            node.subscribers = new HashSet<>(4);
+            node.pattern = pattern;
+        }
+        if (node.subscribers.add(subscriber)) {
+            subscriptionCount++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes a subscription and prunes any branch left without subscribers
+     * @return true if the subscriber was subscribed to this pattern
+     */
+    public boolean unsubscribe(String pattern, S subscriber) {
+        String[] levels = split(pattern);
+        List<Node<S>> path = new ArrayList<>(levels.length + 1);
+        Node<S> node = root;
+        path.add(node);
+        for (String level : levels) {
+            node = node.children.get(level);
+            if (node == null) {
+                return false;
+            }
+            path.add(node);
+        }
+        if (node.subscribers == null || !node.subscribers.remove(subscriber)) {
+            return false;
+        }
+        subscriptionCount--;
+        if (node.subscribers.isEmpty()) {
+            node.subscribers = null;
+            node.pattern = null;
+        }
+        // Walk back up removing nodes that no longer lead anywhere
+        for (int i = levels.length; i > 0; i--) {
+            Node<S> child = path.get(i);
+            if (child.subscribers != null || !child.children.isEmpty()) {
+                break;
+            }
+            path.get(i - 1).children.remove(levels[i - 1]);
+        }
+        return true;
+    }
+
+    /**
+     * Reports every subscriber of a published topic together with the pattern it matched.
+     * A subscriber whose patterns match more than once is reported once per pattern.
+     * @param topic A concrete topic name without wildcards
+     */
+    public void match(String topic, BiConsumer<S, String> consumer) {
+        String[] levels = split(topic);
+        Set<Node<S>> matched = Collections.newSetFromMap(new IdentityHashMap<>());
+        matchCount++;
+        collect(root, levels, 0, matched);
+        for (Node<S> node : matched) {
+            for (S subscriber : node.subscribers) {
+                consumer.accept(subscriber, node.pattern);
+            }
+        }
+    }
+
+    public int size() {
+        return subscriptionCount;
+    }
+
+    private void collect(Node<S> node, String[] levels, int index, Set<Node<S>> matched) {
+        Node<S> any = node.children.get(ANY_LEVELS);
+        if (any != null) {
+            expand(any, levels, index, matched);
+        }
+        if (index == levels.length) {
+            if (node.subscribers != null) {
+                matched.add(node);
+            }
+            return;
+        }
+        Node<S> exact = node.children.get(levels[index]);
+        if (exact != null) {
+            collect(exact, levels, index + 1, matched);
+        }
+        Node<S> one = node.children.get(ONE_LEVEL);
+        if (one != null) {
+            collect(one, levels, index + 1, matched);
+        }
+    }
+
+    /**
+     * Matches a '#' node swallowing any number of the remaining levels, including none. Only '#'
+     * can reach a node at the same level twice, so skipping levels this node was already matched
+     * from in this match keeps every node to one visit per level.
+     */
+    private void expand(Node<S> any, String[] levels, int index, Set<Node<S>> matched) {
+        if (any.expandedIn != matchCount) {
+            any.expandedIn = matchCount;
+            if (any.expandedLevels == null) {
+                any.expandedLevels = new BitSet(levels.length + 1);
+            } else {
+                any.expandedLevels.clear();
+            }
+        }
+        for (int next = index; next <= levels.length; next++) {
+            if (!any.expandedLevels.get(next)) {
+                any.expandedLevels.set(next);
+                collect(any, levels, next, matched);
+            }
+        }
+    }
+
+    private static String[] split(String pattern) {
+        return pattern.split("\\.", -1);
+    }
+}
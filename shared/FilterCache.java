@@ -0,0 +1,124 @@
+package shared;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded LRU cache of filter results, shared by every SwearFilter in the process.
+ * Chat repeats itself a lot (greetings, emoji, bot lines), so identical bodies skip filtering.
+ * The cache is split into segments, each with its own lock and its own share of the size
+ * budget, which is counted in characters so a few long messages can't crowd out many short ones.
+ * Entries remember the dictionary they were computed with and are ignored once it changes.
+ */
+public final class FilterCache {
+    private static final int SEGMENTS = 16;
+    // Longer bodies are unlikely to repeat and would only push useful entries out
+    private static final int MAX_CACHED_LENGTH = 512;
+
+    private static final FilterCache SHARED = new FilterCache(Long.getLong("chat.filterCacheChars", 1_000_000));
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private record Entry(long dictionary, String filtered) {
+    }
+
+    private final class Segment {
+        private final Map<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true); // access order
+        private final long maxChars;
+        private long chars;
+
+        Segment(long maxChars) {
+            this.maxChars = maxChars;
+        }
+
+        synchronized Entry get(String text) {
+            return entries.get(text);
+        }
+
+        synchronized void put(String text, Entry entry) {
+            Entry previous = entries.put(text, entry);
+            chars += weight(text, entry);
+            if (previous != null) {
+                chars -= weight(text, previous);
+            }
+            Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+            while (chars > maxChars && eldest.hasNext()) {
+                Map.Entry<String, Entry> evicted = eldest.next();
+                chars -= weight(evicted.getKey(), evicted.getValue());
+                eldest.remove();
+                evictions.increment();
+            }
+        }
+
+        synchronized void clear() {
+            entries.clear();
+            chars = 0;
+        }
+    }
+
+    private FilterCache(long maxChars) {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(Math.max(1, maxChars / SEGMENTS));
+        }
+    }
+
+    public static FilterCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Gets the cached filter result for a text
+     * @param dictionary Fingerprint of the caller's banned word list
+     * @return The filtered text (the same instance as text if it was clean), or null on a miss
+     */
+    public String get(String text, long dictionary) {
+        if (text.length() > MAX_CACHED_LENGTH) {
+            return null;
+        }
+        Entry entry = segmentFor(text).get(text);
+        if (entry == null || entry.dictionary() != dictionary) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.filtered() == null ? text : entry.filtered();
+    }
+
+    public void put(String text, long dictionary, String filtered) {
+        if (text.length() <= MAX_CACHED_LENGTH) {
+            // Clean text is stored as null so we don't keep the body twice
+            segmentFor(text).put(text, new Entry(dictionary, filtered.equals(text) ? null : filtered));
+        }
+    }
+
+    /**
+     * Drops every entry, called when a banned word list changes
+     */
+    public void invalidate() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * Gets hit/miss counters for the server stats
+     * @return String such as "hits=10 misses=2 evictions=0"
+     */
+    public String stats() {
+        return "hits=" + hits.sum() + " misses=" + misses.sum() + " evictions=" + evictions.sum();
+    }
+
+    private Segment segmentFor(String text) {
+        int h = text.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    private static long weight(String text, Entry entry) {
+        return text.length() + (entry.filtered() == null ? 0 : entry.filtered().length());
+    }
+}
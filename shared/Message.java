@@ -1,16 +1,169 @@
 package shared;
 
 import java.io.Serializable;
+import java.util.List;
 
 
 // From Practical 4 multiClientChat
 public class Message implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Kind of frame carried on the connection
+     */
+    public enum Type {
+        CHAT, // normal text frame (messages, commands and replies)
+        ACK,  // client -> server cumulative acknowledgement, no body
+        PING, // server -> client liveness probe, unsequenced
+        PONG, // client -> server answer to a PING
+        FILE, // server -> client file transfer control: "UPLOAD <id> <token>" or "OFFER <token> <size> <name>"
+        CHUNK, // client -> server next part of the previous CHAT frame, for lines too long for one frame
+        HELLO, // client -> server optional first frame naming the tenant (chat space) to join
+        RESUME // server -> client token for resuming this connection's delivery after a drop;
+               // client -> server the token, sent before REGISTER on the new connection
+    }
+
+    /**
+     * Outcome of a request, carried by the server's reply to it
+     */
+    public enum Status {
+        OK,
+        INVALID,      // malformed or incomplete command
+        NOT_FOUND,    // no such user, group or topic
+        CONFLICT,     // name already taken, already a member, not subscribed...
+        REJECTED,     // refused by moderation: profanity, floods
+        RATE_LIMITED, // dropped for sending too fast
+        TOO_LARGE,    // over a size limit
+        UNAVAILABLE   // over a capacity limit, try again later
+    }
+
     private final String messageBody;
     private final String user;
+    private final Type type;
+    private final long sequence; // server -> client per-connection sequence number, 0 if unsequenced
+    private final long ack;      // client -> server highest sequence received so far
+    private final List<String> topics; // topics of the recipient's subscriptions this message matched
+    private final int session;         // logical session on a multiplexed connection, 0 for the connection's own
+    private final long requestId;      // client -> server correlation id, 0 if no reply is awaited; echoed on the reply
+    private final Status status;       // server -> client outcome of the request a reply answers
 
     public Message(String messageBody, String username) {
+        this(messageBody, username, Type.CHAT, 0, 0, List.of(), 0, 0, Status.OK);
+    }
+
+    private Message(String messageBody, String username, Type type, long sequence, long ack, List<String> topics,
+                    int session, long requestId, Status status) {
         this.messageBody = messageBody;
         this.user = username;
+        this.type = type;
+        this.sequence = sequence;
+        this.ack = ack;
+        this.topics = topics;
+        this.session = session;
+        this.requestId = requestId;
+        this.status = status;
+    }
+
+    /**
+     * Creates a standalone acknowledgement frame
+     * @param ack The highest sequence number received in order
+     * @return An ACK frame
+     */
+    public static Message ack(long ack) {
+        return new Message("", "", Type.ACK, 0, ack, List.of(), 0, 0, Status.OK);
+    }
+
+    /**
+     * Creates a heartbeat probe; the client answers with pong()
+     */
+    public static Message ping() {
+        return new Message("", "", Type.PING, 0, 0, List.of(), 0, 0, Status.OK);
+    }
+
+    public static Message pong() {
+        return new Message("", "", Type.PONG, 0, 0, List.of(), 0, 0, Status.OK);
+    }
+
+    /**
+     * Creates a file transfer control frame
+     * @param user The file's sender for offers, "Server" otherwise
+     */
+    public static Message file(String body, String user) {
+        return new Message(body, user, Type.FILE, 0, 0, List.of(), 0, 0, Status.OK);
+    }
+
+    /**
+     * Creates a continuation of a long line; the first part goes as a normal CHAT frame
+     */
+    public static Message chunk(String body, String user) {
+        return new Message(body, user, Type.CHUNK, 0, 0, List.of(), 0, 0, Status.OK);
+    }
+
+    /**
+     * Creates the handshake frame choosing a tenant; without one the client joins the default tenant
+     */
+    public static Message hello(String tenant) {
+        return new Message(tenant, "", Type.HELLO, 0, 0, List.of(), 0, 0, Status.OK);
+    }
+
+    /**
+     * Creates a resume frame carrying a token, from the server once the client has registered
+     * and from the client to pick up where a dropped connection left off. The client's frame
+     * carries the last sequence it received on the old connection as its ack.
+     */
+    public static Message resume(String token) {
+        return new Message(token, "Server", Type.RESUME, 0, 0, List.of(), 0, 0, Status.OK);
+    }
+
+    /**
+     * Creates the server's answer to a HELLO or RESUME frame. It has the frame's type, so it is
+     * never sequenced and cannot get in the way of a resumed connection's sequence numbers.
+     */
+    public static Message handshakeReply(Type type, Status status, String body) {
+        return new Message(body, "Server", type, 0, 0, List.of(), 0, 0, status);
+    }
+
+    /**
+     * Creates a server reply; tagged with the request's id when the client gave one
+     */
+    public static Message reply(Status status, String body) {
+        return new Message(body, "Server", Type.CHAT, 0, 0, List.of(), 0, 0, status);
+    }
+
+    /**
+     * Copies this message with a connection sequence number attached.
+     * The original is left untouched so one message can be shared by many recipients.
+     */
+    public Message withSequence(long sequence) {
+        return new Message(messageBody, user, type, sequence, ack, topics, session, requestId, status);
+    }
+
+    /**
+     * Copies this message with a piggybacked cumulative acknowledgement
+     */
+    public Message withAck(long ack) {
+        return new Message(messageBody, user, type, sequence, ack, topics, session, requestId, status);
+    }
+
+    /**
+     * Copies this message tagged with the subscribed topics it matched
+     */
+    public Message withTopics(List<String> topics) {
+        return new Message(messageBody, user, type, sequence, ack, List.copyOf(topics), session, requestId, status);
+    }
+
+    /**
+     * Copies this message tagged with the logical session it belongs to
+     */
+    public Message withSession(int session) {
+        return new Message(messageBody, user, type, sequence, ack, topics, session, requestId, status);
+    }
+
+    /**
+     * Copies this message with a correlation id: on a request the client's, on a reply the request's
+     */
+    public Message withRequestId(long requestId) {
+        return new Message(messageBody, user, type, sequence, ack, topics, session, requestId, status);
     }
 
     public String getMessageBody() {
@@ -21,6 +174,34 @@ public class Message implements Serializable {
         return this.user;
     }
 
+    public Type getType() {
+        return this.type;
+    }
+
+    public long getSequence() {
+        return this.sequence;
+    }
+
+    public long getAck() {
+        return this.ack;
+    }
+
+    public List<String> getTopics() {
+        return this.topics;
+    }
+
+    public int getSession() {
+        return this.session;
+    }
+
+    public long getRequestId() {
+        return this.requestId;
+    }
+
+    public Status getStatus() {
+        return this.status;
+    }
+
     @Override
     public String toString(){
         return this.user + ": " + this.messageBody;
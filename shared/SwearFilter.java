@@ -4,21 +4,40 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class SwearFilter {
     private final Set<String> bannedWords;
+    // Banned words in normalised form, indexed by their first character
+    private final Map<Character, List<BannedPattern>> patternsByFirstChar = new HashMap<>();
+    // Screen run before matching: the first PREFIX_LENGTH normalised characters of every banned word
+    // (the whole word if it is shorter), folded to a byte each and packed into a long. Text whose
+    // normalised form contains none of these prefixes is clean. A prefix whose last letter must be
+    // repeated ("ass", "kkk") is keyed apart and only looked up on a repeat.
+    private static final int PREFIX_LENGTH = Long.BYTES;
+    private static final int PREFIX_HASH_BITS = 18;
+    private final BitSet prefixHashes = new BitSet(1 << PREFIX_HASH_BITS); // quick test, with false positives
+    private final Set<Long> prefixKeys = new HashSet<>();                 // exact test after a quick hit
+    private int prefixLengths; // bit k - 1 is set when some banned word has a k character prefix
+    // Identifies this word list in the shared result cache, changes whenever a word is added
+    private long dictionaryFingerprint;
     private static final String PROFANITY_LIST_PATH = "profanity-list.txt";
     
-    // Common delimiters used to bypass filters
-    private static final String DELIMITERS = "\\s|\\.|-|_|,|/|\\\\|\\||\\*|\\+|!|@|#|\\$|%|\\^|&|\\(|\\)|=|'|\"|:|;|<|>|\\?";
+    // Each thread reuses one normaliser so filtering a chat line doesn't allocate per character
+    private static final ThreadLocal<TextNormalizer> NORMALIZER = ThreadLocal.withInitial(TextNormalizer::new);
     
     public SwearFilter() {
         bannedWords = new HashSet<>();
         loadBannedWordsFromFile();
+        for (String word : bannedWords) {
+            index(word);
+        }
     }
     
     /**
@@ -60,7 +79,7 @@ public class SwearFilter {
     
     /**
      * Checks if the text contains any banned words, including when separated by delimiters
-     * or using permutations to bypass filters
+     * or disguised with repeated letters, leetspeak or look-alike characters
      * 
      * @param text The text to check
      * @return true if the text is clean (contains no banned words), false otherwise
@@ -70,44 +89,13 @@ public class SwearFilter {
             return true;
         }
         
-        // Convert to lowercase for case-insensitive matching
-        String normalizedText = text.toLowerCase();
-        
-        // Check for banned words with delimiters
-        for (String bannedWord : bannedWords) {
-            // Create a pattern that allows delimiters between characters
-            StringBuilder patternBuilder = new StringBuilder();
-            for (int i = 0; i < bannedWord.length(); i++) {
-                patternBuilder.append(bannedWord.charAt(i));
-                // Add optional delimiters between characters, but not after the last one
-                if (i < bannedWord.length() - 1) {
-                    patternBuilder.append("(?:").append(DELIMITERS).append(")*");
-                }
-            }
-            
-            // Compile the pattern and check for matches
-            Pattern pattern = Pattern.compile(patternBuilder.toString());
-            Matcher matcher = pattern.matcher(normalizedText);
-            
-            if (matcher.find()) {
-                return false;
-            }
-        }
-        
-        // Also check for the original banned words as substrings
-        // This catches cases where banned words are embedded in other words
-        for (String bannedWord : bannedWords) {
-            if (normalizedText.contains(bannedWord)) {
-                return false;
-            }
-        }
-        
-        return true;
+        // filter() returns the same instance when nothing was masked
+        return filter(text) == text;
     }
     
     /**
      * Filters text by replacing banned words with asterisks,
-     * including when they're separated by delimiters
+     * including when they're separated by delimiters or disguised
      * 
      * @param text The text to filter
      * @return Filtered text with banned words replaced by asterisks
@@ -117,37 +105,162 @@ public class SwearFilter {
             return text;
         }
         
-        String result = text;
+        if (!mayMatch(text)) {
+            return text;
+        }
+        String cached = FilterCache.shared().get(text, dictionaryFingerprint);
+        if (cached != null) {
+            return cached;
+        }
+        String filtered = mask(text);
+        FilterCache.shared().put(text, dictionaryFingerprint, filtered);
+        return filtered;
+    }
+    
+    /**
+     * Cheap first pass: folds the text the way the normaliser does, without buffers, and looks
+     * up the last few characters in the prefix set as it goes. Any match has to begin with a
+     * banned word's prefix, and most prefixes are whole words, so ordinary chat lines and
+     * reactions return without normalising.
+     */
+    private boolean mayMatch(String text) {
+        long window = 0; // last normalised characters, a byte each, newest in the lowest byte
+        int seen = 0;
+        char previous = 0;
+        int run = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = TextNormalizer.map(text.charAt(i));
+            if (c == 0) {
+                continue; // a delimiter
+            }
+            if (c == previous) {
+                // The run of the previous letter goes on; look up the prefixes that need a repeat once
+                if (++run == 2 && containsPrefix(window, seen, true)) {
+                    return true;
+                }
+                continue;
+            }
+            previous = c;
+            run = 1;
+            window = window << Byte.SIZE | fold(c);
+            seen = Math.min(seen + 1, PREFIX_LENGTH);
+            if (containsPrefix(window, seen, false)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Looks up the prefixes of every length that end with the newest character of a window
+     */
+    private boolean containsPrefix(long window, int seen, boolean repeated) {
+        for (int length = 1; length <= seen; length++) {
+            if ((prefixLengths & 1 << (length - 1)) == 0) {
+                continue;
+            }
+            long key = prefixKey(window, length, repeated);
+            if (prefixHashes.get(prefixHash(key)) && prefixKeys.contains(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Folds a normalised character to a byte; characters that fold together only cost a needless full match
+     */
+    private static int fold(char c) {
+        return (c ^ c >>> Byte.SIZE) & 0xFF;
+    }
+
+    /**
+     * Identifies the newest length characters of a window, and whether the last one is repeated
+     */
+    private static long prefixKey(long window, int length, boolean repeated) {
+        long prefix = length == PREFIX_LENGTH ? window : window & (1L << length * Byte.SIZE) - 1;
+        return (prefix * 31 + length) * 2 + (repeated ? 1 : 0);
+    }
+
+    private static int prefixHash(long key) {
+        return (int) (key * 0x9E3779B97F4A7C15L >>> Long.SIZE - PREFIX_HASH_BITS);
+    }
+    
+    /**
+     * Does the actual matching for filter()
+     * @return The text with banned words masked, or the same instance if it was clean
+     */
+    private String mask(String text) {
+        TextNormalizer normalized = NORMALIZER.get().normalize(text);
+        char[] result = null; // only copied once something needs masking
+        for (int i = 0; i < normalized.length(); i++) {
+            int length = matchLength(normalized, i);
+            if (length == 0) {
+                continue;
+            }
+            if (result == null) {
+                result = text.toCharArray();
+            }
+            // Mask the original characters the match came from, delimiters in between included
+            int from = normalized.startOffset(i);
+            int to = normalized.endOffset(i + length - 1);
+            for (int j = from; j < to; j++) {
+                result[j] = '*';
+            }
+        }
+        return result == null ? text : new String(result);
+    }
+    
+    /**
+     * Finds the longest banned word starting at a position of the normalised text
+     * @return Number of normalised characters matched, 0 if none
+     */
+    private int matchLength(TextNormalizer normalized, int position) {
+        List<BannedPattern> candidates = patternsByFirstChar.get(normalized.charAt(position));
+        if (candidates == null) {
+            return 0;
+        }
+        int longest = 0;
+        for (BannedPattern pattern : candidates) {
+            if (pattern.length() > longest && pattern.matches(normalized, position)) {
+                longest = pattern.length();
+            }
+        }
+        return longest;
+    }
+    
+    /**
+     * A banned word in normalised form. Repeated letters in the word must be repeated at least as
+     * often in the text, so "ass" matches "aaasss" but not "as".
+     */
+    private static final class BannedPattern {
+        private final char[] chars;
+        private final int[] minRuns;
         
-        // First handle direct matches
-        for (String bannedWord : bannedWords) {
-            // Case-insensitive replacement
-            Pattern pattern = Pattern.compile(bannedWord, Pattern.CASE_INSENSITIVE);
-            Matcher matcher = pattern.matcher(result);
-            
-            result = matcher.replaceAll(s -> "*".repeat(s.group().length()));
+        BannedPattern(TextNormalizer normalized) {
+            chars = new char[normalized.length()];
+            minRuns = new int[normalized.length()];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = normalized.charAt(i);
+                minRuns[i] = normalized.runLength(i);
+            }
+        }
+        
+        int length() {
+            return chars.length;
         }
         
-        // Then handle delimiter-separated matches
-        for (String bannedWord : bannedWords) {
-            // Create a pattern that allows delimiters between characters
-            StringBuilder patternBuilder = new StringBuilder();
-            for (int i = 0; i < bannedWord.length(); i++) {
-                patternBuilder.append(bannedWord.charAt(i));
-                // Add optional delimiters between characters, but not after the last one
-                if (i < bannedWord.length() - 1) {
-                    patternBuilder.append("(?:").append(DELIMITERS).append(")*");
+        boolean matches(TextNormalizer text, int position) {
+            if (position + chars.length > text.length()) {
+                return false;
+            }
+            for (int i = 0; i < chars.length; i++) {
+                if (text.charAt(position + i) != chars[i] || text.runLength(position + i) < minRuns[i]) {
+                    return false;
                 }
             }
-            
-            // Compile the pattern and replace matches
-            Pattern pattern = Pattern.compile(patternBuilder.toString(), Pattern.CASE_INSENSITIVE);
-            Matcher matcher = pattern.matcher(result);
-            
-            result = matcher.replaceAll(s -> "*".repeat(s.group().length()));
+            return true;
         }
-        
-        return result;
     }
     
     /**
@@ -155,6 +268,32 @@ public class SwearFilter {
      * @param word The word to ban
      */
     public void addBannedWord(String word) {
-        bannedWords.add(word.toLowerCase());
+        if (bannedWords.add(word.toLowerCase())) {
+            index(word);
+            FilterCache.shared().invalidate();
+        }
+    }
+    
+    /**
+     * Adds a word to the first-character index used for matching and to the prefix screen
+     */
+    private void index(String word) {
+        TextNormalizer normalized = new TextNormalizer().normalize(word);
+        if (normalized.length() == 0) {
+            return;
+        }
+        patternsByFirstChar.computeIfAbsent(normalized.charAt(0), c -> new ArrayList<>())
+                .add(new BannedPattern(normalized));
+        int length = Math.min(normalized.length(), PREFIX_LENGTH);
+        long prefix = 0;
+        for (int i = 0; i < length; i++) {
+            prefix = prefix << Byte.SIZE | fold(normalized.charAt(i));
+        }
+        long key = prefixKey(prefix, length, normalized.runLength(length - 1) > 1);
+        prefixHashes.set(prefixHash(key));
+        prefixKeys.add(key);
+        prefixLengths |= 1 << (length - 1);
+        // Order-independent, so every filter loaded from the same list shares cache entries
+        dictionaryFingerprint += word.toLowerCase().hashCode() * 0x9E3779B97F4A7C15L + 1;
     }
 }
@@ -0,0 +1,133 @@
+package shared;
+
+import java.text.Normalizer;
+
+/**
+ * Single-pass, table-driven text normaliser used by the swear filter. One pass over the input
+ * folds case, maps accented letters, homoglyphs (Greek/Cyrillic look-alikes, full-width forms)
+ * and leetspeak to plain a-z, drops the delimiters people put between letters, and collapses
+ * repeated letters into runs ("f.U-u-u_C k" becomes f u(x3) c k).
+ *
+ * Every normalised character remembers the span of original text it came from, so a match
+ * found in the normalised form can be masked in the original message.
+ * Instances reuse their buffers between calls and are not thread safe.
+ */
+public final class TextNormalizer {
+    private static final char DROP = 0;
+    private static final int TABLE_SIZE = 0x500; // Latin-1, Latin Extended, Greek and Cyrillic
+    private static final char[] TABLE = buildTable();
+
+    private char[] chars = new char[64];
+    private int[] runs = new int[64];   // how many times the character was repeated
+    private int[] starts = new int[64]; // original offset where the run starts
+    private int[] ends = new int[64];   // original offset just after the run ends
+    private int length;
+
+    /**
+     * Normalises text into this instance's buffers, replacing the previous result
+     * @param text The original text
+     * @return this, for chaining
+     */
+    public TextNormalizer normalize(CharSequence text) {
+        ensureCapacity(text.length());
+        length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = map(text.charAt(i));
+            if (c == DROP) {
+                continue;
+            }
+            if (length > 0 && chars[length - 1] == c) {
+                // Same letter again (possibly with delimiters in between): extend the run
+                runs[length - 1]++;
+                ends[length - 1] = i + 1;
+                continue;
+            }
+            chars[length] = c;
+            runs[length] = 1;
+            starts[length] = i;
+            ends[length] = i + 1;
+            length++;
+        }
+        return this;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public char charAt(int index) {
+        return chars[index];
+    }
+
+    public int runLength(int index) {
+        return runs[index];
+    }
+
+    public int startOffset(int index) {
+        return starts[index];
+    }
+
+    public int endOffset(int index) {
+        return ends[index];
+    }
+
+    /**
+     * Maps one character to its normalised form
+     * @return The folded character, or DROP (0) for delimiters and invisible characters
+     */
+    static char map(char c) {
+        if (c < TABLE_SIZE) {
+            return TABLE[c];
+        }
+        if (c >= '\uFF01' && c <= '\uFF5E') {
+            return map((char) (c - 0xFEE0)); // full-width ASCII
+        }
+        if (c == '\u200B' || c == '\u200C' || c == '\u200D' || c == '\u2060' || c == '\uFEFF') {
+            return DROP; // zero-width characters
+        }
+        return Character.toLowerCase(c);
+    }
+
+    private void ensureCapacity(int needed) {
+        if (chars.length < needed) {
+            int size = Math.max(needed, chars.length * 2);
+            chars = new char[size];
+            runs = new int[size];
+            starts = new int[size];
+            ends = new int[size];
+        }
+    }
+
+    private static char[] buildTable() {
+        char[] table = new char[TABLE_SIZE];
+        for (int c = 0; c < TABLE_SIZE; c++) {
+            // Strip accents so accented letters fold to their base letter
+            String decomposed = Normalizer.normalize(String.valueOf((char) c), Normalizer.Form.NFD);
+            table[c] = Character.toLowerCase(decomposed.charAt(0));
+        }
+
+        // Delimiters used to split words up ("f.u.c.k", "f u c k")
+        for (char c : " \t\r\n\u00A0\u00AD.-_,/\\|*+!#%^&()='\":;<>?~`[]{}".toCharArray()) {
+            table[c] = DROP;
+        }
+
+        // Leetspeak
+        map(table, "0o 1i 3e 4a 5s 7t 8b 9g @a $s \u00A2c \u00A3e \u00DFs");
+
+        // Greek and Cyrillic letters that look like Latin ones
+        map(table, "\u0391a \u0392b \u0395e \u0396z \u0397h \u0399i \u039Ak \u039Cm \u039Dn \u039Fo \u03A1p \u03A4t \u03A5y \u03A7x "
+                + "\u03B1a \u03B2b \u03B5e \u03B9i \u03BAk \u03BDv \u03BFo \u03C1p \u03C4t \u03C5u \u03C7x");
+        map(table, "\u0410a \u0412b \u0415e \u041Ak \u041Cm \u041Dh \u041Eo \u0420p \u0421c \u0422t \u0423y \u0425x "
+                + "\u0430a \u0432b \u0435e \u043Ak \u043Cm \u043Dh \u043Eo \u0440p \u0441c \u0442t \u0443y \u0445x "
+                + "\u0455s \u0456i \u0458j");
+        return table;
+    }
+
+    private static void map(char[] table, String pairs) {
+        for (String pair : pairs.split(" ")) {
+            if (pair.charAt(0) < table.length) {
+                table[pair.charAt(0)] = pair.charAt(1);
+            }
+        }
+    }
+}